@@ -1,26 +1,41 @@
 package de.mbrauner.nifiplugins.processors;
 
+import de.mbrauner.nifiplugins.processors.util.CachedKnownHostsVerifier;
+import de.mbrauner.nifiplugins.processors.util.SSHTransportConfig;
+import de.mbrauner.nifiplugins.services.PooledSSHSession;
+import de.mbrauner.nifiplugins.services.SSHSessionPool;
+import net.schmizz.sshj.DefaultConfig;
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.sftp.RemoteDirectory;
 import net.schmizz.sshj.sftp.RemoteResourceInfo;
 import net.schmizz.sshj.sftp.SFTPClient;
 import net.schmizz.sshj.sftp.SFTPException;
 import net.schmizz.sshj.transport.verification.HostKeyVerifier;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.ConfigVerificationResult;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
-import java.security.PublicKey;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 @TriggerSerially
@@ -36,6 +51,8 @@ import java.util.regex.Pattern;
         @WritesAttribute(attribute = "filename", description = "The name of the file on the SFTP Server"),
         @WritesAttribute(attribute = "path", description = "The fully qualified name of the directory on the SFTP Server from which the file was pulled"),
         @WritesAttribute(attribute = "directory", description = "The name of the directory on the SFTP Server from which the file was pulled"),
+        @WritesAttribute(attribute = ListSFTPWithInput.LISTING_COUNT, description = "Number of listed files with listing output per listing"),
+        @WritesAttribute(attribute = ListSFTPWithInput.LISTING_BYTES, description = "Total size of the listed files with listing output per listing"),
 })
 @ReadsAttributes({@ReadsAttribute(attribute = "sftp.remote.host", description = "The hostname of the SFTP Server")})
 @Stateful(scopes = {Scope.CLUSTER}, description = "After performing a listing of files, the timestamp of the newest file is stored. "
@@ -44,6 +61,12 @@ import java.util.regex.Pattern;
         + "a new Primary Node is selected, the new node will not duplicate the data that was listed by the previous Primary Node.")
 public class ListSFTPWithInput extends AbstractProcessor implements VerifiableProcessor {
 
+    public static final String LISTING_COUNT = "sftp.listing.count";
+    public static final String LISTING_BYTES = "sftp.listing.bytes";
+
+    public static final String OUTPUT_PER_FILE = "per file";
+    public static final String OUTPUT_PER_LISTING = "per listing";
+
     public static final Relationship SUCCESS = new Relationship.Builder()
             .name("success")
             .description("Output relation for flow files")
@@ -81,6 +104,13 @@ public class ListSFTPWithInput extends AbstractProcessor implements VerifiablePr
             .defaultValue("false")
             .required(true)
             .build();
+    public static final PropertyDescriptor SFTP_KNOWN_HOSTS_FILE = new PropertyDescriptor.Builder().name("SFTP_KNOWN_HOSTS_FILE")
+            .displayName("sftp known hosts file")
+            .description("OpenSSH known hosts file the host keys are verified against with strict host key checking. "
+                    + "The file is parsed once and again after it was modified, verified keys are remembered per host.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
 
     public static final PropertyDescriptor SFTP_USERNAME = new PropertyDescriptor.Builder().name("SFTP_USERNAME")
             .displayName("sftp username")
@@ -120,9 +150,70 @@ public class ListSFTPWithInput extends AbstractProcessor implements VerifiablePr
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor SFTP_CIPHERS = new PropertyDescriptor.Builder().name("SFTP_CIPHERS")
+            .displayName("sftp preferred ciphers")
+            .description("comma separated ciphers which are offered first in the given order, e.g. aes128-gcm@openssh.com, chacha20-poly1305@openssh.com, "
+                    + "all other supported ciphers follow in their default order")
+            .required(false)
+            .addValidator(SSHTransportConfig.algorithmValidator(DefaultConfig::getCipherFactories))
+            .build();
+    public static final PropertyDescriptor SFTP_MACS = new PropertyDescriptor.Builder().name("SFTP_MACS")
+            .displayName("sftp preferred macs")
+            .description("comma separated message authentication codes which are offered first in the given order, e.g. hmac-sha2-256-etm@openssh.com, "
+                    + "all other supported macs follow in their default order. Not used with gcm or chacha20 ciphers.")
+            .required(false)
+            .addValidator(SSHTransportConfig.algorithmValidator(DefaultConfig::getMACFactories))
+            .build();
+    public static final PropertyDescriptor SFTP_COMPRESSION = new PropertyDescriptor.Builder().name("SFTP_COMPRESSION")
+            .displayName("sftp compression")
+            .description("offers zlib compression first, helps with large listings on slow links but costs cpu on fast ones")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .build();
+    public static final PropertyDescriptor SFTP_KEEP_ALIVE_INTERVAL = new PropertyDescriptor.Builder().name("SFTP_KEEP_ALIVE_INTERVAL")
+            .displayName("sftp keep alive interval")
+            .description("interval of keep alive messages while the connection is open, 0 sec disables them")
+            .defaultValue("0 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor SFTP_SOCKET_BUFFER_SIZE = new PropertyDescriptor.Builder().name("SFTP_SOCKET_BUFFER_SIZE")
+            .displayName("sftp socket buffer size")
+            .description("send and receive buffer size of the socket, the operating system default if not set")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SFTP_LISTING_OUTPUT = new PropertyDescriptor.Builder().name("SFTP_LISTING_OUTPUT")
+            .displayName("sftp listing output")
+            .description("'" + OUTPUT_PER_FILE + "' creates a flow file with provenance events for every listed file. '" + OUTPUT_PER_LISTING
+                    + "' writes the paths of all listed files line by line into the input flow file and routes it to success with a single provenance event, "
+                    + "the count and total size are added as attributes. If nothing is found, the input flow file itself is routed to nofile.")
+            .allowableValues(OUTPUT_PER_FILE, OUTPUT_PER_LISTING)
+            .defaultValue(OUTPUT_PER_FILE)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor SSH_SESSION_POOL = new PropertyDescriptor.Builder().name("SSH_SESSION_POOL")
+            .displayName("ssh session pool")
+            .description("shared pool the sftp session is borrowed from instead of connecting for every listing. "
+                    + "Host keys are verified against the known hosts file of the pool, strict host key checking of this processor is not allowed with a pool. "
+                    + "The connection timeout, ciphers, macs, compression, keep alive and socket buffer of this processor do not apply to pooled sessions")
+            .identifiesControllerService(SSHSessionPool.class)
+            .required(false)
+            .build();
+
     private Set<Relationship> relationships;
     private List<PropertyDescriptor> descriptors;
 
+    private static final HostKeyVerifier ACCEPT_ALL_HOST_KEYS = new PromiscuousVerifier();
+
+    private volatile DefaultConfig transportConfig = new DefaultConfig();
+    private volatile HostKeyVerifier hostKeyVerifier = ACCEPT_ALL_HOST_KEYS;
+    private volatile int keepAliveSeconds;
+    private volatile int socketBufferSize;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         relationships = new HashSet<>();
@@ -140,6 +231,14 @@ public class ListSFTPWithInput extends AbstractProcessor implements VerifiablePr
         descriptors.add(SFTP_FILE_FILTER);
         descriptors.add(SFTP_HOSTNAME);
         descriptors.add(STRICT_HOST_KEY_CHECKING);
+        descriptors.add(SFTP_KNOWN_HOSTS_FILE);
+        descriptors.add(SFTP_CIPHERS);
+        descriptors.add(SFTP_MACS);
+        descriptors.add(SFTP_COMPRESSION);
+        descriptors.add(SFTP_KEEP_ALIVE_INTERVAL);
+        descriptors.add(SFTP_SOCKET_BUFFER_SIZE);
+        descriptors.add(SFTP_LISTING_OUTPUT);
+        descriptors.add(SSH_SESSION_POOL);
         descriptors = Collections.unmodifiableList(descriptors);
     }
 
@@ -153,6 +252,62 @@ public class ListSFTPWithInput extends AbstractProcessor implements VerifiablePr
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+        List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (validationContext.getProperty(STRICT_HOST_KEY_CHECKING).asBoolean() && !validationContext.getProperty(SFTP_KNOWN_HOSTS_FILE).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SFTP_KNOWN_HOSTS_FILE.getDisplayName())
+                    .valid(false)
+                    .explanation("strict host key checking needs a known hosts file")
+                    .build());
+        }
+        if (validationContext.getProperty(SSH_SESSION_POOL).isSet() && validationContext.getProperty(STRICT_HOST_KEY_CHECKING).asBoolean()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SSH_SESSION_POOL.getDisplayName())
+                    .valid(false)
+                    .explanation("pooled sessions verify host keys against the known hosts file of the pool, disable "
+                            + STRICT_HOST_KEY_CHECKING.getDisplayName() + " and configure the pool")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void configureHostKeyVerifier(ProcessContext context) {
+        if (!context.getProperty(STRICT_HOST_KEY_CHECKING).asBoolean()) {
+            hostKeyVerifier = ACCEPT_ALL_HOST_KEYS;
+            return;
+        }
+        try {
+            hostKeyVerifier = new CachedKnownHostsVerifier(Paths.get(context.getProperty(SFTP_KNOWN_HOSTS_FILE).getValue()));
+        } catch (IOException e) {
+            throw new ProcessException("Unable to read known hosts file due to " + e.getMessage(), e);
+        }
+    }
+
+    @OnScheduled
+    public void configureTransport(ProcessContext context) {
+        keepAliveSeconds = context.getProperty(SFTP_KEEP_ALIVE_INTERVAL).asTimePeriod(TimeUnit.SECONDS).intValue();
+        transportConfig = SSHTransportConfig.createConfig(context.getProperty(SFTP_CIPHERS).getValue(), context.getProperty(SFTP_MACS).getValue(),
+                context.getProperty(SFTP_COMPRESSION).asBoolean(), keepAliveSeconds > 0);
+        socketBufferSize = context.getProperty(SFTP_SOCKET_BUFFER_SIZE).isSet()
+                ? context.getProperty(SFTP_SOCKET_BUFFER_SIZE).asDataSize(DataUnit.B).intValue()
+                : 0;
+    }
+
+    private SSHClient newSSHClient(int connectionTimeout) {
+        final SSHClient ssh = new SSHClient(transportConfig);
+        ssh.setConnectTimeout(connectionTimeout);
+        if (socketBufferSize > 0) {
+            ssh.setSocketFactory(SSHTransportConfig.socketFactory(socketBufferSize));
+        }
+        if (keepAliveSeconds > 0) {
+            ssh.getConnection().getKeepAlive().setKeepAliveInterval(keepAliveSeconds);
+        }
+        return ssh;
+    }
+
     private String getProperty(ProcessContext context, PropertyDescriptor descriptor, FlowFile ff) {
         if (context.getProperty(descriptor).isExpressionLanguagePresent()) {
             return context.getProperty(descriptor).evaluateAttributeExpressions(ff).getValue();
@@ -177,89 +332,47 @@ public class ListSFTPWithInput extends AbstractProcessor implements VerifiablePr
         String username = getProperty(context, SFTP_USERNAME, ff);
         String password = getProperty(context, SFTP_PASSWORD, ff);
         int port = Integer.parseInt(getProperty(context, SFTP_PORT, ff));
-        boolean hostKeyCheck = "true".equals(getProperty(context, STRICT_HOST_KEY_CHECKING, ff));
+        int connectionTimeout = Integer.parseInt(getProperty(context, SFTP_CONNECTION_TIMEOUT, ff));
         final Pattern pattern = Pattern.compile(getProperty(context, SFTP_FILE_FILTER, ff));
+        final boolean perListing = OUTPUT_PER_LISTING.equals(context.getProperty(SFTP_LISTING_OUTPUT).getValue());
 
-        final SSHClient ssh = new SSHClient();
+        final SSHSessionPool sessionPool = context.getProperty(SSH_SESSION_POOL).asControllerService(SSHSessionPool.class);
         try {
-            if (!hostKeyCheck) {
-                ssh.addHostKeyVerifier(new HostKeyVerifier() {
-
-                    @Override
-                    public boolean verify(String hostname, int port, PublicKey key) {
-                        return true;
-                    }
-
-                    @Override
-                    public List<String> findExistingAlgorithms(String hostname, int port) {
-                        return null;
+            final List<RemoteResourceInfo> files;
+            final long start = System.nanoTime();
+            if (sessionPool != null) {
+                try (PooledSSHSession pooledSession = sessionPool.borrow(hostname, port, username, password)) {
+                    try {
+                        files = list(pooledSession.getSFTPClient(), path, pattern);
+                    } catch (SFTPException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        pooledSession.invalidate();
+                        throw e;
                     }
-                });
-            }
-            ssh.connect(hostname, port);
-            try {
-                ssh.authPassword(username, password);
-                final SFTPClient sftp = ssh.newSFTPClient();
+                }
+            } else {
+                final SSHClient ssh = newSSHClient(connectionTimeout);
+                ssh.addHostKeyVerifier(hostKeyVerifier);
+                ssh.connect(hostname, port);
                 try {
-                    List<RemoteResourceInfo> l = sftp.ls(path, resource -> {
-                        getLogger().debug("check {} against {} will return {}", resource.getName(), pattern.pattern(), pattern.matcher(resource.getName()).matches());
-                        return pattern.matcher(resource.getName()).matches();
-                    });
-                    if (l.isEmpty()) {
-                        FlowFile output = session.create(ff);
-                        Map<String, String> attributes = new HashMap<>();
-                        attributes.put("sftp.remote.host", hostname);
-                        attributes.put("sftp.remote.port", Integer.toString(port));
-                        attributes.put("sftp.remote.user", username);
-                        output = session.putAllAttributes(output, attributes);
-                        session.transfer(output, NO_FILE);
-                    } else {
-                        for (RemoteResourceInfo r : l) {
-                            if (r.isRegularFile()) {
-                                FlowFile output = session.create(ff);
-                                Map<String, String> attributes = new HashMap<>();
-                                attributes.put("sftp.remote.host", hostname);
-                                attributes.put("sftp.remote.port", Integer.toString(port));
-                                attributes.put("sftp.remote.user", username);
-                                attributes.put("filename", r.getName());
-                                attributes.put("path", r.getPath());
-                                attributes.put("directory", r.getPath().replace(r.getName(), ""));
-                                output = session.putAllAttributes(output, attributes);
-                                session.transfer(output, SUCCESS);
-                            }
-                        }
-                    }
-                } catch (SFTPException e) {
-                    /*
-                     * follow lines for debugging behaviour in prod env
-                     *
-                     * START
-                     */
-                    StringBuilder sb = new StringBuilder();
+                    ssh.authPassword(username, password);
+                    final SFTPClient sftp = ssh.newSFTPClient();
                     try {
-                        RemoteDirectory rd = sftp.getSFTPEngine().openDir(path);
-                        if (rd != null) {
-                            sb.append("dir exists, other error");
-                        }else{
-                            sb.append("dir was null, that's confusing");
-                        }
-                        rd = null;
-                    } catch (Exception ex) {
-                        sb.append(ex.getMessage());
-                        getLogger().warn(sb.toString(), ex);
+                        files = list(sftp, path, pattern);
+                    } finally {
+                        sftp.close();
                     }
-                    sb = null;
-                    /*
-                     * END
-                     */
-                    throw e;
                 } finally {
-                    sftp.close();
+                    ssh.disconnect();
                 }
-            } finally {
-                ssh.disconnect();
             }
-            session.remove(ff);
+            if (perListing) {
+                transferListing(session, ff, files, path, hostname, port, username, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } else {
+                transferPerFile(session, ff, files, hostname, port, username);
+                session.remove(ff);
+            }
         } catch (Throwable t) {
             getLogger().error(t.getMessage(), t);
             Map<String, String> attributes = new HashMap<>(ff.getAttributes());
@@ -268,6 +381,107 @@ public class ListSFTPWithInput extends AbstractProcessor implements VerifiablePr
         }
     }
 
+    private List<RemoteResourceInfo> list(SFTPClient sftp, String path, Pattern pattern) throws IOException {
+        try {
+            return sftp.ls(path, resource -> {
+                getLogger().debug("check {} against {} will return {}", resource.getName(), pattern.pattern(), pattern.matcher(resource.getName()).matches());
+                return pattern.matcher(resource.getName()).matches();
+            });
+        } catch (SFTPException e) {
+            /*
+             * follow lines for debugging behaviour in prod env
+             *
+             * START
+             */
+            StringBuilder sb = new StringBuilder();
+            try {
+                RemoteDirectory rd = sftp.getSFTPEngine().openDir(path);
+                if (rd != null) {
+                    sb.append("dir exists, other error");
+                }else{
+                    sb.append("dir was null, that's confusing");
+                }
+                rd = null;
+            } catch (Exception ex) {
+                sb.append(ex.getMessage());
+                getLogger().warn(sb.toString(), ex);
+            }
+            sb = null;
+            /*
+             * END
+             */
+            throw e;
+        }
+    }
+
+    private void transferPerFile(ProcessSession session, FlowFile ff, List<RemoteResourceInfo> l, String hostname, int port, String username) {
+        if (l.isEmpty()) {
+            FlowFile output = session.create(ff);
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("sftp.remote.host", hostname);
+            attributes.put("sftp.remote.port", Integer.toString(port));
+            attributes.put("sftp.remote.user", username);
+            output = session.putAllAttributes(output, attributes);
+            session.transfer(output, NO_FILE);
+        } else {
+            for (RemoteResourceInfo r : l) {
+                if (r.isRegularFile()) {
+                    FlowFile output = session.create(ff);
+                    Map<String, String> attributes = new HashMap<>();
+                    attributes.put("sftp.remote.host", hostname);
+                    attributes.put("sftp.remote.port", Integer.toString(port));
+                    attributes.put("sftp.remote.user", username);
+                    attributes.put("filename", r.getName());
+                    attributes.put("path", r.getPath());
+                    attributes.put("directory", r.getPath().replace(r.getName(), ""));
+                    output = session.putAllAttributes(output, attributes);
+                    session.transfer(output, SUCCESS);
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the paths of all regular files into the input flow file, which is the only flow file and provenance event of the listing
+     */
+    private void transferListing(ProcessSession session, FlowFile ff, List<RemoteResourceInfo> l, String path, String hostname, int port, String username,
+                                 long millis) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("sftp.remote.host", hostname);
+        attributes.put("sftp.remote.port", Integer.toString(port));
+        attributes.put("sftp.remote.user", username);
+        attributes.put("directory", path);
+
+        List<RemoteResourceInfo> files = new ArrayList<>(l.size());
+        long bytes = 0;
+        for (RemoteResourceInfo r : l) {
+            if (r.isRegularFile()) {
+                files.add(r);
+                bytes += r.getAttributes().getSize();
+            }
+        }
+        if (files.isEmpty()) {
+            session.transfer(session.putAllAttributes(ff, attributes), NO_FILE);
+            return;
+        }
+
+        ff = session.write(ff, out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (RemoteResourceInfo r : files) {
+                writer.write(r.getPath());
+                writer.write('\n');
+            }
+            writer.flush();
+        });
+        attributes.put(LISTING_COUNT, Integer.toString(files.size()));
+        attributes.put(LISTING_BYTES, Long.toString(bytes));
+        attributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
+        ff = session.putAllAttributes(ff, attributes);
+        session.getProvenanceReporter().receive(ff, "sftp://" + hostname + ":" + port + (path.startsWith("/") ? path : "/" + path),
+                "listed " + files.size() + " files with " + bytes + " bytes", millis);
+        session.transfer(ff, SUCCESS);
+    }
+
     @Override
     public List<ConfigVerificationResult> verify(ProcessContext context, ComponentLog verificationLogger, Map<String, String> attributes) {
         return null;
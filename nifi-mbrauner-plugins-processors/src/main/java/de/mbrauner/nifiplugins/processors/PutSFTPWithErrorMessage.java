@@ -1,19 +1,45 @@
 package de.mbrauner.nifiplugins.processors;
 
+import de.mbrauner.nifiplugins.processors.util.CompressionFormat;
+import de.mbrauner.nifiplugins.processors.util.HostCircuitBreaker;
+import de.mbrauner.nifiplugins.processors.util.StreamingSFTPTransfer;
+import de.mbrauner.nifiplugins.processors.util.TransferStatistics;
+import de.mbrauner.nifiplugins.services.SSHSessionPool;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.ConfigVerificationResult;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.VerifiableProcessor;
 import org.apache.nifi.processor.exception.FlowFileAccessException;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processors.standard.PutFileTransfer;
 import org.apache.nifi.processors.standard.PutSFTP;
 import org.apache.nifi.processors.standard.util.FileInfo;
+import org.apache.nifi.processors.standard.util.FTPTransfer;
 import org.apache.nifi.processors.standard.util.FileTransfer;
 import org.apache.nifi.processors.standard.util.SFTPTransfer;
+import org.apache.nifi.stream.io.StreamUtils;
 import org.apache.nifi.util.StopWatch;
 import org.apache.nifi.util.StringUtils;
 
@@ -21,12 +47,224 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
-public class PutSFTPWithErrorMessage extends PutSFTP {
+@ReadsAttributes({
+        @ReadsAttribute(attribute = PutSFTPWithErrorMessage.RESUME_TEMP_FILENAME, description = "Temporary remote filename of a previous, interrupted resumable upload"),
+        @ReadsAttribute(attribute = PutSFTPWithErrorMessage.RESUME_OFFSET, description = "Bytes written by the interrupted upload, the upload is only resumed "
+                + "if the temporary remote file is not larger"),
+})
+@WritesAttributes({
+        @WritesAttribute(attribute = "ExceptionReport", description = "The exception which routed the flow file to failure"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.RESUME_TEMP_FILENAME, description = "Temporary remote filename of an interrupted resumable upload"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.RESUME_OFFSET, description = "Bytes written to the temporary remote file before a resumable upload was interrupted"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.REMOTE_FILENAME, description = "Name of the uploaded remote file, "
+                + "differs from filename after a conflict rename or with the suffix of the Compression Format"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.TRANSFER_BYTES, description = "Size of the transferred content in bytes"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.TRANSFER_WIRE_BYTES, description = "Bytes written to the remote server if they differ from the content size, e.g. after compression or when an upload was resumed"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.TRANSFER_MILLIS, description = "Duration of the transfer in milliseconds"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.TRANSFER_RATE, description = "Bytes per second written to the remote server"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.ARCHIVE_PATH, description = "Full remote path of the archive the flow file was aggregated into"),
+        @WritesAttribute(attribute = PutSFTPWithErrorMessage.ARCHIVE_ENTRY, description = "Name of the flow file's entry within the archive"),
+})
+public class PutSFTPWithErrorMessage extends PutSFTP implements VerifiableProcessor {
+
+    public static final String RESUME_TEMP_FILENAME = "sftp.resume.tempfile";
+    public static final String RESUME_OFFSET = "sftp.resume.offset";
+    public static final String REMOTE_FILENAME = "sftp.remote.filename";
+    public static final String TRANSFER_BYTES = "sftp.transfer.bytes";
+    public static final String TRANSFER_WIRE_BYTES = "sftp.transfer.wire.bytes";
+    public static final String TRANSFER_MILLIS = "sftp.transfer.millis";
+    public static final String TRANSFER_RATE = "sftp.transfer.rate";
+    public static final String ARCHIVE_PATH = "sftp.archive.path";
+    public static final String ARCHIVE_ENTRY = "sftp.archive.entry";
+
+    public static final String AGGREGATION_TAR = "tar";
+    public static final String AGGREGATION_ZIP = "zip";
+
+    public static final PropertyDescriptor RESUMABLE_UPLOAD = new PropertyDescriptor.Builder()
+            .name("Resumable Upload")
+            .description("If true, the content is uploaded to a temporary file which is renamed after completion. "
+                    + "A retry of a failed upload continues at the size of the temporary file on the remote server instead of starting from the beginning, "
+                    + "if the file is not larger than the recorded offset of the failed attempt. "
+                    + "Dot Rename is ignored and Temporary Filename cannot be set in this mode.")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .required(true)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COMPRESSION_FORMAT = new PropertyDescriptor.Builder()
+            .name("Compression Format")
+            .description("Compresses the content while it is uploaded and appends the matching suffix to the remote filename, "
+                    + "which is written to the " + REMOTE_FILENAME + " attribute. Cannot be combined with Resumable Upload.")
+            .allowableValues(Arrays.stream(CompressionFormat.values()).map(CompressionFormat::getValue).filter(v -> !v.isEmpty()).toArray(String[]::new))
+            .required(false)
+            .build();
+
+    public static final PropertyDescriptor CIRCUIT_BREAKER_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Failure Threshold")
+            .description("Number of failed transfers to a host within the Circuit Breaker Window which opens the circuit for this host. "
+                    + "Flow files for a host with an open circuit are penalized and re-queued without connecting, other hosts are not affected. "
+                    + "0 disables the circuit breaker and any failure yields the whole processor.")
+            .defaultValue("5")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CIRCUIT_BREAKER_WINDOW = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Window")
+            .description("Time window in which failures of a host are counted")
+            .defaultValue("1 min")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CIRCUIT_BREAKER_OPEN_DURATION = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Open Duration")
+            .description("Time a circuit stays open before a single trial transfer to the host is allowed")
+            .defaultValue("30 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor AGGREGATION_FORMAT = new PropertyDescriptor.Builder()
+            .name("Aggregation Format")
+            .description("If set, up to Batch Size flow files with the same hostname and remote path are packed into one archive which is uploaded as a single remote file. "
+                    + "The entry names are taken from the filename attributes, zero byte flow files are rejected before packing if Reject Zero-Byte Files is set. "
+                    + "Cannot be combined with Resumable Upload.")
+            .allowableValues(AGGREGATION_TAR, AGGREGATION_ZIP)
+            .required(false)
+            .build();
+
+    public static final PropertyDescriptor AGGREGATION_FILENAME = new PropertyDescriptor.Builder()
+            .name("Aggregation Filename")
+            .description("Remote filename of an archive without extension, evaluated against the first flow file of the archive")
+            .defaultValue("${uuid}")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SSH_SESSION_POOL = new PropertyDescriptor.Builder()
+            .name("SSH Session Pool")
+            .description("If set, SFTP sessions are borrowed from this shared pool instead of connecting for every trigger. "
+                    + "The pool authenticates with username and password only and verifies host keys against its own known hosts file, "
+                    + "so Strict Host Key Checking, Host Key File and proxy settings are not allowed with a pool. "
+                    + "Pooled sessions use the timeouts of the pool, Connection Timeout, Data Timeout and Use Compression do not apply.")
+            .identifiesControllerService(SSHSessionPool.class)
+            .required(false)
+            .build();
+
+    private static final String COUNTER_FILES = "Files Transferred";
+    private static final String COUNTER_BYTES = "Bytes Transferred";
+    // fixed names, the host is only logged as hostnames may come from expression language
+    private static final String COUNTER_REQUEUED_BY_OPEN_CIRCUIT = "Re-queued by open circuit";
+    private static final String COUNTER_CIRCUIT_OPENED = "Circuit opened";
+
+    private final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker();
+    private final TransferStatistics transferStatistics = new TransferStatistics();
+
+    private List<PropertyDescriptor> descriptors;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        super.init(context);
+        final List<PropertyDescriptor> descriptors = new ArrayList<>(super.getSupportedPropertyDescriptors());
+        descriptors.add(RESUMABLE_UPLOAD);
+        descriptors.add(COMPRESSION_FORMAT);
+        descriptors.add(AGGREGATION_FORMAT);
+        descriptors.add(AGGREGATION_FILENAME);
+        descriptors.add(CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CIRCUIT_BREAKER_WINDOW);
+        descriptors.add(CIRCUIT_BREAKER_OPEN_DURATION);
+        descriptors.add(SSH_SESSION_POOL);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void initializeState(final ProcessContext context) {
+        transferStatistics.clear();
+        circuitBreaker.configure(context.getProperty(CIRCUIT_BREAKER_THRESHOLD).asInteger(),
+                context.getProperty(CIRCUIT_BREAKER_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(CIRCUIT_BREAKER_OPEN_DURATION).asTimePeriod(TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (validationContext.getProperty(RESUMABLE_UPLOAD).asBoolean() && validationContext.getProperty(COMPRESSION_FORMAT).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(COMPRESSION_FORMAT.getDisplayName())
+                    .valid(false)
+                    .explanation("compressed content cannot be resumed at a raw byte offset, disable " + RESUMABLE_UPLOAD.getDisplayName())
+                    .build());
+        }
+        if (validationContext.getProperty(RESUMABLE_UPLOAD).asBoolean() && validationContext.getProperty(AGGREGATION_FORMAT).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(AGGREGATION_FORMAT.getDisplayName())
+                    .valid(false)
+                    .explanation("archives are not resumable, disable " + RESUMABLE_UPLOAD.getDisplayName())
+                    .build());
+        }
+        if (validationContext.getProperty(RESUMABLE_UPLOAD).asBoolean() && validationContext.getProperty(FileTransfer.TEMP_FILENAME).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(FileTransfer.TEMP_FILENAME.getDisplayName())
+                    .valid(false)
+                    .explanation("a resumable upload uses its own temporary file, disable " + RESUMABLE_UPLOAD.getDisplayName())
+                    .build());
+        }
+        if (validationContext.getProperty(SSH_SESSION_POOL).isSet() && validationContext.getProperty(SFTPTransfer.PRIVATE_KEY_PATH).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SSH_SESSION_POOL.getDisplayName())
+                    .valid(false)
+                    .explanation("pooled sessions authenticate with a password, remove " + SFTPTransfer.PRIVATE_KEY_PATH.getDisplayName())
+                    .build());
+        }
+        if (validationContext.getProperty(SSH_SESSION_POOL).isSet()) {
+            final boolean strict = validationContext.getProperty(SFTPTransfer.STRICT_HOST_KEY_CHECKING).asBoolean();
+            if (strict || validationContext.getProperty(SFTPTransfer.HOST_KEY_FILE).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SSH_SESSION_POOL.getDisplayName())
+                        .valid(false)
+                        .explanation("pooled sessions verify host keys against the known hosts file of the pool, disable "
+                                + SFTPTransfer.STRICT_HOST_KEY_CHECKING.getDisplayName() + " and remove " + SFTPTransfer.HOST_KEY_FILE.getDisplayName())
+                        .build());
+            }
+            if (validationContext.getProperty(SFTPTransfer.PROXY_CONFIGURATION_SERVICE).isSet() || validationContext.getProperty(FTPTransfer.PROXY_HOST).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SSH_SESSION_POOL.getDisplayName())
+                        .valid(false)
+                        .explanation("pooled sessions connect directly, remove the proxy settings")
+                        .build());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    protected StreamingSFTPTransfer getFileTransfer(final ProcessContext context) {
+        final SSHSessionPool sessionPool = context.getProperty(SSH_SESSION_POOL).asControllerService(SSHSessionPool.class);
+        return new StreamingSFTPTransfer(context, getLogger(), sessionPool);
+    }
 
     /**
      * @param context
@@ -36,6 +274,11 @@ public class PutSFTPWithErrorMessage extends PutSFTP {
      */
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        if (context.getProperty(AGGREGATION_FORMAT).isSet()) {
+            onTriggerAggregated(context, session);
+            return;
+        }
+
         FlowFile flowFile = session.get();
         if (flowFile == null) {
             return;
@@ -45,89 +288,429 @@ public class PutSFTPWithErrorMessage extends PutSFTP {
         String hostname = context.getProperty(FileTransfer.HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
 
         final int maxNumberOfFiles = context.getProperty(FileTransfer.BATCH_SIZE).asInteger();
+        final boolean resumable = context.getProperty(RESUMABLE_UPLOAD).asBoolean();
+        final CompressionFormat compression = CompressionFormat.fromValue(context.getProperty(COMPRESSION_FORMAT).getValue());
+        final boolean dotRename = context.getProperty(FileTransfer.DOT_RENAME).asBoolean();
+        final AtomicReference<String> resumeTempFilename = new AtomicReference<>(null);
+        final AtomicLong resumeOffset = new AtomicLong(0);
         int fileCount = 0;
-        try (final SFTPTransfer transfer = getFileTransfer(context)) {
-            do {
-                //evaluate again inside the loop as each flowfile can have a different hostname
-                hostname = context.getProperty(FileTransfer.HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
-                final String rootPath = context.getProperty(FileTransfer.REMOTE_PATH).evaluateAttributeExpressions(flowFile).getValue();
-                final String workingDirPath;
-                if (StringUtils.isBlank(rootPath)) {
-                    workingDirPath = transfer.getHomeDirectory(flowFile);
-                } else {
-                    workingDirPath = transfer.getAbsolutePath(flowFile, rootPath);
-                }
+        try (final StreamingSFTPTransfer transfer = getFileTransfer(context)) {
+            try {
+                do {
+                    resumeTempFilename.set(null);
+                    //evaluate again inside the loop as each flowfile can have a different hostname
+                    hostname = context.getProperty(FileTransfer.HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+                    if (!circuitBreaker.allowRequest(hostname)) {
+                        logger.debug("Circuit for remote host {} is open, re-queue {}", new Object[]{hostname, flowFile});
+                        session.transfer(session.penalize(flowFile));
+                        session.adjustCounter(COUNTER_REQUEUED_BY_OPEN_CIRCUIT, 1, false);
+                        session.commitAsync();
+                        continue;
+                    }
+                    final String rootPath = context.getProperty(FileTransfer.REMOTE_PATH).evaluateAttributeExpressions(flowFile).getValue();
+                    final String workingDirPath;
+                    if (StringUtils.isBlank(rootPath)) {
+                        workingDirPath = transfer.getHomeDirectory(flowFile);
+                    } else {
+                        workingDirPath = transfer.getAbsolutePath(flowFile, rootPath);
+                    }
 
-                final boolean rejectZeroByteFiles = context.getProperty(FileTransfer.REJECT_ZERO_BYTE).asBoolean();
-                final ConflictResult conflictResult
-                        = identifyAndResolveConflictFile(context.getProperty(FileTransfer.CONFLICT_RESOLUTION).getValue(), transfer, workingDirPath, flowFile, rejectZeroByteFiles, logger);
-
-                if (conflictResult.isTransfer()) {
-                    final StopWatch stopWatch = new StopWatch();
-                    stopWatch.start();
-
-                    beforePut(flowFile, context, transfer);
-                    final FlowFile flowFileToTransfer = flowFile;
-                    final AtomicReference<String> fullPathRef = new AtomicReference<>(null);
-                    session.read(flowFile, new InputStreamCallback() {
-                        @Override
-                        public void process(final InputStream in) throws IOException {
-                            try (final InputStream bufferedIn = new BufferedInputStream(in)) {
-                                if (workingDirPath != null && context.getProperty(SFTPTransfer.CREATE_DIRECTORY).asBoolean()) {
-                                    transfer.ensureDirectoryExists(flowFileToTransfer, new File(workingDirPath));
-                                }
+                    final boolean rejectZeroByteFiles = context.getProperty(FileTransfer.REJECT_ZERO_BYTE).asBoolean();
+                    final String fileName = flowFile.getAttribute(CoreAttributes.FILENAME.key()) + compression.getSuffix();
+                    final ConflictResult conflictResult
+                            = identifyAndResolveConflictFile(context.getProperty(FileTransfer.CONFLICT_RESOLUTION).getValue(), transfer, workingDirPath, flowFile, fileName, rejectZeroByteFiles, logger);
 
-                                fullPathRef.set(transfer.put(flowFileToTransfer, workingDirPath, conflictResult.getFileName(), bufferedIn));
+                    if (conflictResult.isTransfer()) {
+                        final StopWatch stopWatch = new StopWatch();
+                        stopWatch.start();
+
+                        beforePut(flowFile, context, transfer);
+                        final FlowFile flowFileToTransfer = flowFile;
+                        final AtomicReference<String> fullPathRef = new AtomicReference<>(null);
+                        final AtomicLong wireBytes = new AtomicLong(flowFile.getSize());
+                        session.read(flowFile, new InputStreamCallback() {
+                            @Override
+                            public void process(final InputStream in) throws IOException {
+                                try (final InputStream bufferedIn = new BufferedInputStream(in)) {
+                                    if (workingDirPath != null && context.getProperty(SFTPTransfer.CREATE_DIRECTORY).asBoolean()) {
+                                        transfer.ensureDirectoryExists(flowFileToTransfer, new File(workingDirPath));
+                                    }
+
+                                    if (resumable) {
+                                        fullPathRef.set(putResumable(transfer, flowFileToTransfer, workingDirPath, conflictResult.getFileName(), bufferedIn,
+                                                resumeTempFilename, resumeOffset, wireBytes));
+                                    } else if (compression != CompressionFormat.NONE) {
+                                        fullPathRef.set(putCompressed(transfer, flowFileToTransfer, workingDirPath, conflictResult.getFileName(), bufferedIn,
+                                                compression, dotRename, wireBytes));
+                                    } else {
+                                        fullPathRef.set(transfer.put(flowFileToTransfer, workingDirPath, conflictResult.getFileName(), bufferedIn));
+                                    }
+                                }
                             }
+                        });
+                        afterPut(flowFile, context, transfer);
+
+                        stopWatch.stop();
+                        final long millis = stopWatch.getDuration(TimeUnit.MILLISECONDS);
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Successfully transferred {} to {} on remote host {} in {} milliseconds at a rate of {} ({} bytes on the wire at a rate of {})",
+                                    new Object[]{flowFile, fullPathRef.get(), hostname, millis, stopWatch.calculateDataRate(flowFile.getSize()), wireBytes.get(),
+                                            stopWatch.calculateDataRate(wireBytes.get())});
+                        }
+                        flowFile = publishMetrics(session, flowFile, hostname, wireBytes.get(), millis);
+                        flowFile = session.putAttribute(flowFile, REMOTE_FILENAME, conflictResult.getFileName());
+
+                        String fullPathWithSlash = fullPathRef.get();
+                        if (!fullPathWithSlash.startsWith("/")) {
+                            fullPathWithSlash = "/" + fullPathWithSlash;
+                        }
+                        final String destinationUri = transfer.getProtocolName() + "://" + hostname + fullPathWithSlash;
+                        session.getProvenanceReporter().send(flowFile, destinationUri, millis);
+                        circuitBreaker.recordSuccess(hostname);
+                        if (resumable) {
+                            flowFile = session.removeAllAttributes(flowFile, new HashSet<>(Arrays.asList(RESUME_TEMP_FILENAME, RESUME_OFFSET)));
                         }
-                    });
-                    afterPut(flowFile, context, transfer);
-
-                    stopWatch.stop();
-                    final String dataRate = stopWatch.calculateDataRate(flowFile.getSize());
-                    final long millis = stopWatch.getDuration(TimeUnit.MILLISECONDS);
-                    logger.info("Successfully transferred {} to {} on remote host {} in {} milliseconds at a rate of {}",
-                            new Object[]{flowFile, fullPathRef.get(), hostname, millis, dataRate});
-
-                    String fullPathWithSlash = fullPathRef.get();
-                    if (!fullPathWithSlash.startsWith("/")) {
-                        fullPathWithSlash = "/" + fullPathWithSlash;
                     }
-                    final String destinationUri = transfer.getProtocolName() + "://" + hostname + fullPathWithSlash;
-                    session.getProvenanceReporter().send(flowFile, destinationUri, millis);
-                }
 
-                if (conflictResult.isPenalize()) {
-                    flowFile = session.penalize(flowFile);
-                }
+                    if (!conflictResult.isTransfer()) {
+                        circuitBreaker.releaseTrial(hostname);
+                    }
+
+                    if (conflictResult.isPenalize()) {
+                        flowFile = session.penalize(flowFile);
+                    }
 
-                session.transfer(flowFile, conflictResult.getRelationship());
-                session.commitAsync();
-            } while (isScheduled()
-                    && (getRelationships().size() == context.getAvailableRelationships().size())
-                    && (++fileCount < maxNumberOfFiles)
-                    && ((flowFile = session.get()) != null));
+                    session.transfer(flowFile, conflictResult.getRelationship());
+                    session.commitAsync();
+                } while (isScheduled()
+                        && (getRelationships().size() == context.getAvailableRelationships().size())
+                        && (++fileCount < maxNumberOfFiles)
+                        && ((flowFile = session.get()) != null));
+            } catch (final IOException | RuntimeException e) {
+                // a broken or half written channel must not be handed to the next borrower of the pool
+                transfer.invalidateSession();
+                throw e;
+            }
         } catch (final IOException e) {
-            context.yield();
+            onHostFailure(context, session, hostname);
             logger.error("Unable to transfer {} to remote host {} due to {}", new Object[]{flowFile, hostname, e});
             flowFile = session.penalize(flowFile);
             Map<String, String> attributes = new HashMap<>(flowFile.getAttributes());
             attributes.put("ExceptionReport", e.getCause().getClass().getCanonicalName() + ": " + e.getMessage());
+            putResumeAttributes(attributes, resumeTempFilename, resumeOffset);
             session.transfer(session.putAllAttributes(session.penalize(flowFile), attributes), REL_FAILURE);
         } catch (final FlowFileAccessException e) {
-            context.yield();
+            onHostFailure(context, session, hostname);
             logger.error("Unable to transfer {} to remote host {} due to {}", new Object[]{flowFile, hostname, e.getCause()});
             flowFile = session.penalize(flowFile);
             Map<String, String> attributes = new HashMap<>(flowFile.getAttributes());
             attributes.put("ExceptionReport", e.getCause().getClass().getCanonicalName() + ": " + e.getMessage());
+            putResumeAttributes(attributes, resumeTempFilename, resumeOffset);
             session.transfer(session.putAllAttributes(session.penalize(flowFile), attributes), REL_FAILURE);
         } catch (final ProcessException e) {
-            context.yield();
+            onHostFailure(context, session, hostname);
             logger.error("Unable to transfer {} to remote host {} due to {}: {}; routing to failure", new Object[]{flowFile, hostname, e, e.getCause()});
             flowFile = session.penalize(flowFile);
             Map<String, String> attributes = new HashMap<>(flowFile.getAttributes());
             attributes.put("ExceptionReport", e.getCause().getClass().getCanonicalName() + ": " + e.getMessage());
+            putResumeAttributes(attributes, resumeTempFilename, resumeOffset);
             session.transfer(session.putAllAttributes(session.penalize(flowFile), attributes), REL_FAILURE);
+        } catch (final RuntimeException e) {
+            circuitBreaker.releaseTrial(hostname);
+            throw e;
+        }
+    }
+
+    /**
+     * packs the flow files of each destination into one archive
+     */
+    private void onTriggerAggregated(final ProcessContext context, final ProcessSession session) {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(FileTransfer.BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        final ComponentLog logger = getLogger();
+        final boolean rejectZeroByteFiles = context.getProperty(FileTransfer.REJECT_ZERO_BYTE).asBoolean();
+        final Map<String, List<FlowFile>> destinations = new LinkedHashMap<>();
+        for (final FlowFile flowFile : flowFiles) {
+            if (rejectZeroByteFiles && flowFile.getSize() == 0) {
+                logger.warn("Rejecting {} because it is zero bytes", new Object[]{flowFile});
+                session.transfer(session.penalize(flowFile), REL_REJECT);
+                continue;
+            }
+            final String hostname = context.getProperty(FileTransfer.HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+            final String rootPath = context.getProperty(FileTransfer.REMOTE_PATH).evaluateAttributeExpressions(flowFile).getValue();
+            destinations.computeIfAbsent(hostname + ":" + rootPath, k -> new ArrayList<>()).add(flowFile);
+        }
+
+        if (destinations.isEmpty()) {
+            return;
+        }
+
+        try (final StreamingSFTPTransfer transfer = getFileTransfer(context)) {
+            for (final List<FlowFile> archiveFlowFiles : destinations.values()) {
+                final String hostname = context.getProperty(FileTransfer.HOSTNAME).evaluateAttributeExpressions(archiveFlowFiles.get(0)).getValue();
+                if (!circuitBreaker.allowRequest(hostname)) {
+                    logger.debug("Circuit for remote host {} is open, re-queue {} flow files", new Object[]{hostname, archiveFlowFiles.size()});
+                    for (final FlowFile flowFile : archiveFlowFiles) {
+                        session.transfer(session.penalize(flowFile));
+                    }
+                    session.adjustCounter(COUNTER_REQUEUED_BY_OPEN_CIRCUIT, archiveFlowFiles.size(), false);
+                    continue;
+                }
+                try {
+                    putArchive(context, session, transfer, hostname, archiveFlowFiles);
+                } catch (final IOException | ProcessException e) {
+                    logger.error("Unable to transfer archive of {} flow files to remote host {} due to {}", new Object[]{archiveFlowFiles.size(), hostname, e});
+                    transfer.invalidateSession();
+                    onHostFailure(context, session, hostname);
+                    final Throwable cause = e.getCause() == null ? e : e.getCause();
+                    for (final FlowFile flowFile : archiveFlowFiles) {
+                        session.transfer(session.putAttribute(session.penalize(flowFile), "ExceptionReport",
+                                cause.getClass().getCanonicalName() + ": " + e.getMessage()), REL_FAILURE);
+                    }
+                } catch (final RuntimeException e) {
+                    circuitBreaker.releaseTrial(hostname);
+                    throw e;
+                }
+            }
+        } catch (final IOException e) {
+            logger.warn("Unable to close connection due to {}", new Object[]{e});
+        }
+    }
+
+    private void putArchive(final ProcessContext context, final ProcessSession session, final StreamingSFTPTransfer transfer,
+                            final String hostname, final List<FlowFile> flowFiles) throws IOException {
+        final FlowFile first = flowFiles.get(0);
+        final String archiveFormat = context.getProperty(AGGREGATION_FORMAT).getValue();
+        final CompressionFormat compression = CompressionFormat.fromValue(context.getProperty(COMPRESSION_FORMAT).getValue());
+        final String rootPath = context.getProperty(FileTransfer.REMOTE_PATH).evaluateAttributeExpressions(first).getValue();
+        final String workingDirPath = StringUtils.isBlank(rootPath) ? transfer.getHomeDirectory(first) : transfer.getAbsolutePath(first, rootPath);
+        final String archiveName = context.getProperty(AGGREGATION_FILENAME).evaluateAttributeExpressions(first).getValue()
+                + "." + archiveFormat + compression.getSuffix();
+
+        final ConflictResult conflictResult
+                = identifyAndResolveConflictFile(context.getProperty(FileTransfer.CONFLICT_RESOLUTION).getValue(), transfer, workingDirPath, first, archiveName, false, getLogger());
+        if (!conflictResult.isTransfer()) {
+            circuitBreaker.releaseTrial(hostname);
+            for (final FlowFile flowFile : flowFiles) {
+                session.transfer(conflictResult.isPenalize() ? session.penalize(flowFile) : flowFile, conflictResult.getRelationship());
+            }
+            return;
+        }
+
+        final StopWatch stopWatch = new StopWatch(true);
+        if (workingDirPath != null && context.getProperty(SFTPTransfer.CREATE_DIRECTORY).asBoolean()) {
+            transfer.ensureDirectoryExists(first, new File(workingDirPath));
+        }
+        final boolean dotRename = context.getProperty(FileTransfer.DOT_RENAME).asBoolean();
+        final String fullPath = StreamingSFTPTransfer.buildRemotePath(workingDirPath, conflictResult.getFileName());
+        final String uploadName = dotRename ? "." + conflictResult.getFileName() : conflictResult.getFileName();
+        final AtomicLong wireBytes = new AtomicLong();
+        final List<String> entryNames = new ArrayList<>(flowFiles.size());
+        try (final ArchiveOutputStream archive = createArchive(archiveFormat, transfer.openStream(first, workingDirPath, uploadName, 0, wireBytes, compression))) {
+            final Set<String> usedNames = new HashSet<>();
+            for (final FlowFile flowFile : flowFiles) {
+                final String fileName = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+                String entryName = fileName;
+                for (int i = 1; !usedNames.add(entryName); i++) {
+                    entryName = i + "." + fileName;
+                }
+                entryNames.add(entryName);
+                archive.putArchiveEntry(createArchiveEntry(archiveFormat, entryName, flowFile.getSize()));
+                session.read(flowFile, new InputStreamCallback() {
+                    @Override
+                    public void process(final InputStream in) throws IOException {
+                        StreamUtils.copy(in, archive);
+                    }
+                });
+                archive.closeArchiveEntry();
+            }
+            archive.finish();
+        }
+        transfer.applyRemoteAttributes(first, StreamingSFTPTransfer.buildRemotePath(workingDirPath, uploadName));
+        if (dotRename) {
+            transfer.rename(first, StreamingSFTPTransfer.buildRemotePath(workingDirPath, uploadName), fullPath);
+        }
+        stopWatch.stop();
+
+        final long millis = stopWatch.getDuration(TimeUnit.MILLISECONDS);
+        if (getLogger().isDebugEnabled()) {
+            getLogger().debug("Successfully transferred archive of {} flow files to {} on remote host {} in {} milliseconds at a rate of {}",
+                    new Object[]{flowFiles.size(), fullPath, hostname, millis, stopWatch.calculateDataRate(wireBytes.get())});
+        }
+        transferStatistics.record(hostname, wireBytes.get(), millis);
+        final String destinationUri = transfer.getProtocolName() + "://" + hostname + (fullPath.startsWith("/") ? fullPath : "/" + fullPath);
+        for (int i = 0; i < flowFiles.size(); i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(ARCHIVE_PATH, fullPath);
+            attributes.put(ARCHIVE_ENTRY, entryNames.get(i));
+            attributes.put(TRANSFER_BYTES, Long.toString(flowFiles.get(i).getSize()));
+            attributes.put(TRANSFER_MILLIS, Long.toString(millis));
+            attributes.put(TRANSFER_RATE, Long.toString(TransferStatistics.bytesPerSecond(wireBytes.get(), millis)));
+            final FlowFile flowFile = session.putAllAttributes(flowFiles.get(i), attributes);
+            session.getProvenanceReporter().send(flowFile, destinationUri, "archive entry " + entryNames.get(i), millis);
+            session.transfer(flowFile, REL_SUCCESS);
+        }
+        session.adjustCounter(COUNTER_FILES, flowFiles.size(), false);
+        session.adjustCounter(COUNTER_BYTES, wireBytes.get(), false);
+        circuitBreaker.recordSuccess(hostname);
+    }
+
+    private static ArchiveOutputStream createArchive(final String archiveFormat, final OutputStream out) {
+        if (AGGREGATION_ZIP.equals(archiveFormat)) {
+            return new ZipArchiveOutputStream(out);
+        }
+        final TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        return tar;
+    }
+
+    private static ArchiveEntry createArchiveEntry(final String archiveFormat, final String entryName, final long size) {
+        if (AGGREGATION_ZIP.equals(archiveFormat)) {
+            final ZipArchiveEntry entry = new ZipArchiveEntry(entryName);
+            entry.setSize(size);
+            return entry;
+        }
+        final TarArchiveEntry entry = new TarArchiveEntry(entryName);
+        entry.setSize(size);
+        return entry;
+    }
+
+    /**
+     * writes the transfer figures to the flow file, the session counters and the statistics of the host
+     */
+    private FlowFile publishMetrics(final ProcessSession session, final FlowFile flowFile, final String hostname, final long wireBytes, final long millis) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(TRANSFER_BYTES, Long.toString(flowFile.getSize()));
+        attributes.put(TRANSFER_MILLIS, Long.toString(millis));
+        attributes.put(TRANSFER_RATE, Long.toString(TransferStatistics.bytesPerSecond(wireBytes, millis)));
+        if (wireBytes != flowFile.getSize()) {
+            attributes.put(TRANSFER_WIRE_BYTES, Long.toString(wireBytes));
+        }
+        session.adjustCounter(COUNTER_FILES, 1, false);
+        session.adjustCounter(COUNTER_BYTES, wireBytes, false);
+        transferStatistics.record(hostname, wireBytes, millis);
+        return session.putAllAttributes(flowFile, attributes);
+    }
+
+    /**
+     * @return latency and throughput statistics per remote host since the processor was scheduled
+     */
+    public Map<String, String> getTransferStatistics() {
+        return transferStatistics.summary();
+    }
+
+    /**
+     * reports the latency and throughput histogram of every remote host as a verification step, the status surface of the statistics
+     */
+    @Override
+    public List<ConfigVerificationResult> verify(final ProcessContext context, final ComponentLog verificationLogger, final Map<String, String> attributes) {
+        final List<ConfigVerificationResult> results = new ArrayList<>();
+        final Map<String, String> summary = transferStatistics.summary();
+        if (summary.isEmpty()) {
+            results.add(new ConfigVerificationResult.Builder()
+                    .verificationStepName("Transfer Statistics")
+                    .outcome(ConfigVerificationResult.Outcome.SKIPPED)
+                    .explanation("No transfers recorded since the processor was scheduled")
+                    .build());
+        }
+        summary.forEach((host, statistics) -> results.add(new ConfigVerificationResult.Builder()
+                .verificationStepName("Transfer Statistics " + host)
+                .outcome(ConfigVerificationResult.Outcome.SUCCESSFUL)
+                .explanation(statistics)
+                .build()));
+        return results;
+    }
+
+    /**
+     * opens the circuit of the host if the failure threshold is reached, without circuit breaker the whole processor yields
+     */
+    private void onHostFailure(final ProcessContext context, final ProcessSession session, final String hostname) {
+        if (!circuitBreaker.isEnabled()) {
+            context.yield();
+        } else if (circuitBreaker.recordFailure(hostname)) {
+            getLogger().warn("Opened circuit for remote host {} for {}", new Object[]{hostname, context.getProperty(CIRCUIT_BREAKER_OPEN_DURATION).getValue()});
+            session.adjustCounter(COUNTER_CIRCUIT_OPENED, 1, false);
+        }
+    }
+
+    /**
+     * uploads the content to a temporary file and renames it after completion,
+     * an existing temporary file of a previous attempt is continued at its remote size if it is not larger than the recorded offset.
+     * The recorded offset counts unconfirmed writes, so the remote file may be smaller but never larger.
+     *
+     * @return full path of the uploaded file
+     */
+    private String putResumable(final StreamingSFTPTransfer transfer, final FlowFile flowFile, final String path, final String fileName, final InputStream in,
+                                final AtomicReference<String> resumeTempFilename, final AtomicLong resumeOffset, final AtomicLong wireBytes) throws IOException {
+        String tempFilename = flowFile.getAttribute(RESUME_TEMP_FILENAME);
+        if (StringUtils.isBlank(tempFilename)) {
+            tempFilename = "." + fileName + "." + flowFile.getAttribute(CoreAttributes.UUID.key()) + ".part";
+        }
+        resumeTempFilename.set(tempFilename);
+
+        final long recordedOffset = parseOffset(flowFile.getAttribute(RESUME_OFFSET));
+        long offset = transfer.getRemoteFileSize(flowFile, path, tempFilename);
+        if (offset > 0 && (offset > flowFile.getSize() || offset > recordedOffset)) {
+            getLogger().warn("Temporary file {} has {} bytes but {} were recorded for {}, upload starts from the beginning",
+                    new Object[]{tempFilename, offset, recordedOffset < 0 ? "none" : recordedOffset, flowFile});
+            offset = 0;
+        } else if (offset > 0) {
+            getLogger().info("Resuming upload of {} to {} at offset {}", new Object[]{flowFile, tempFilename, offset});
+            StreamUtils.skip(in, offset);
+        } else {
+            offset = 0;
+        }
+
+        final String tempPath = transfer.putStream(flowFile, path, tempFilename, offset, in, resumeOffset);
+        wireBytes.set(resumeOffset.get() - offset);
+        transfer.applyRemoteAttributes(flowFile, tempPath);
+        final String fullPath = StreamingSFTPTransfer.buildRemotePath(path, fileName);
+        transfer.rename(flowFile, tempPath, fullPath);
+        return fullPath;
+    }
+
+    /**
+     * @return the recorded offset or -1 if there is none
+     */
+    private static long parseOffset(final String value) {
+        if (StringUtils.isBlank(value)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * uploads the content compressed, like {@link SFTPTransfer#put(FlowFile, String, String, InputStream)} the remote attributes are set
+     * and a dot file is renamed after completion if configured
+     *
+     * @return full path of the uploaded file
+     */
+    private String putCompressed(final StreamingSFTPTransfer transfer, final FlowFile flowFile, final String path, final String fileName, final InputStream in,
+                                 final CompressionFormat compression, final boolean dotRename, final AtomicLong wireBytes) throws IOException {
+        final String fullPath = StreamingSFTPTransfer.buildRemotePath(path, fileName);
+        if (dotRename) {
+            final String tempPath = transfer.putStream(flowFile, path, "." + fileName, 0, in, wireBytes, compression);
+            transfer.applyRemoteAttributes(flowFile, tempPath);
+            transfer.rename(flowFile, tempPath, fullPath);
+        } else {
+            transfer.putStream(flowFile, path, fileName, 0, in, wireBytes, compression);
+            transfer.applyRemoteAttributes(flowFile, fullPath);
+        }
+        return fullPath;
+    }
+
+    private static void putResumeAttributes(final Map<String, String> attributes, final AtomicReference<String> resumeTempFilename, final AtomicLong resumeOffset) {
+        if (resumeTempFilename.get() != null) {
+            attributes.put(RESUME_TEMP_FILENAME, resumeTempFilename.get());
+            attributes.put(RESUME_OFFSET, Long.toString(resumeOffset.get()));
         }
     }
 
@@ -167,17 +750,19 @@ public class PutSFTPWithErrorMessage extends PutSFTP {
 
     /**
      * {@link PutFileTransfer#identifyAndResolveConflictFile(String, FileTransfer, String, FlowFile, boolean, ComponentLog)}
+     * but for a given remote filename
      */
     private ConflictResult identifyAndResolveConflictFile(
             final String conflictResolutionType,
             final SFTPTransfer transfer,
             final String path,
             final FlowFile flowFile,
+            final String targetFileName,
             final boolean rejectZeroByteFiles,
             final ComponentLog logger)
             throws IOException {
         Relationship destinationRelationship = REL_SUCCESS;
-        String fileName = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+        String fileName = targetFileName;
         boolean transferFile = true;
         boolean penalizeFile = false;
 
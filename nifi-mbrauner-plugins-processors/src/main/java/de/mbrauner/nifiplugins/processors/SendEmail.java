@@ -1,45 +1,885 @@
 package de.mbrauner.nifiplugins.processors;
 
+import de.mbrauner.nifiplugins.processors.util.FlowFileDataSource;
+import de.mbrauner.nifiplugins.processors.util.PropertyOverrideContext;
+import de.mbrauner.nifiplugins.processors.util.QueueWindow;
+import de.mbrauner.nifiplugins.processors.util.SessionInterceptor;
+import de.mbrauner.nifiplugins.processors.util.SmtpStatistics;
+import de.mbrauner.nifiplugins.processors.util.SmtpTransportPool;
+import de.mbrauner.nifiplugins.processors.util.TimedSmtpTransport;
+import de.mbrauner.nifiplugins.processors.util.TokenBucket;
+import jakarta.activation.DataHandler;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMultipart;
 import jakarta.mail.internet.MimeUtility;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.DynamicRelationship;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.ConfigVerificationResult;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.processor.VerifiableProcessor;
 import org.apache.nifi.processors.standard.PutEmail;
+import org.apache.nifi.provenance.ProvenanceReporter;
+import org.apache.nifi.stream.io.LimitingInputStream;
+import org.apache.nifi.stream.io.StreamUtils;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 @DynamicProperty(name = "Relationship Name", value = "A Regular Expression", expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
     description = "Routes FlowFiles whose content matches the regular expression defined by Dynamic Property's value to the "
         + "Relationship defined by the Dynamic Property's key")
 @DynamicRelationship(name = "Name from Dynamic Property", description = "FlowFiles that match the Dynamic Property's Regular Expression")
-public class SendEmail extends PutEmail {
+@WritesAttributes({@WritesAttribute(attribute = SendEmail.DIGEST_COUNT, description = "Number of flow files combined into the digest mail")})
+public class SendEmail extends PutEmail implements VerifiableProcessor {
 
-    private volatile Map<String, String> customHeaderMap = null;
-    private static final Pattern ASCII_PATTERN = Pattern.compile("[\\x00-\\x7F]+");
+    public static final PropertyDescriptor REUSE_CONNECTION = new PropertyDescriptor.Builder()
+        .name("Reuse SMTP Connection")
+        .description("If true, connected and authenticated SMTP connections are kept open and reused for the following messages")
+        .allowableValues("true", "false")
+        .defaultValue("false")
+        .required(true)
+        .build();
+
+    public static final PropertyDescriptor CONNECTION_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+        .name("SMTP Connection Idle Timeout")
+        .description("A reused connection which was not used for this time is closed")
+        .defaultValue("30 sec")
+        .required(true)
+        .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor MAX_MESSAGES_PER_CONNECTION = new PropertyDescriptor.Builder()
+        .name("Max Messages per SMTP Connection")
+        .description("A reused connection is closed after sending this number of messages")
+        .defaultValue("100")
+        .required(true)
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+        .name("Batch Size")
+        .description("Maximum number of flow files sent within one trigger, each flow file is routed on its own. "
+            + "If greater than 1, the messages are sent back to back over a reused SMTP connection.")
+        .defaultValue("1")
+        .required(true)
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor DIGEST_WINDOW = new PropertyDescriptor.Builder()
+        .name("Digest Window")
+        .description("If set, flow files with the same recipients and subject stay queued until the oldest one waited for this time "
+            + "or Digest Max Messages is reached, then their contents are sent as one combined mail. "
+            + "Requires the flow file content as message.")
+        .required(false)
+        .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor DIGEST_MAX_MESSAGES = new PropertyDescriptor.Builder()
+        .name("Digest Max Messages")
+        .description("Maximum number of flow files combined into one digest mail")
+        .defaultValue("100")
+        .required(true)
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor DIGEST_MAX_BODY_SIZE = new PropertyDescriptor.Builder()
+        .name("Digest Max Body Size")
+        .description("Maximum size of the body of a digest mail, the remaining contents are omitted")
+        .defaultValue("1 MB")
+        .required(true)
+        .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor STREAM_ATTACHMENT = new PropertyDescriptor.Builder()
+        .name("Stream Attachment")
+        .description("If true and the flow file is attached, its content is read from the content repository and base64 encoded "
+            + "while the mail is sent instead of being loaded into memory before")
+        .allowableValues("true", "false")
+        .defaultValue("false")
+        .required(true)
+        .build();
+
+    public static final PropertyDescriptor DOMAIN_RATE_LIMITS = new PropertyDescriptor.Builder()
+        .name("Domain Rate Limits")
+        .description("Comma separated list of domain=rate, the maximum number of messages per second to recipients of the domain, "
+            + "e.g. 'example.com=5, example.org=0.5'. A flow file which would exceed the limit of one of its recipient domains "
+            + "is penalized and stays in the queue.")
+        .required(false)
+        .addValidator(rateLimitsValidator())
+        .build();
+
+    public static final PropertyDescriptor GLOBAL_RATE_LIMIT = new PropertyDescriptor.Builder()
+        .name("Global Rate Limit")
+        .description("Maximum number of messages per second over all recipients, "
+            + "a flow file which would exceed the limit is penalized and stays in the queue")
+        .required(false)
+        .addValidator(positiveRateValidator())
+        .build();
+
+    public static final PropertyDescriptor ASYNC_DISPATCH = new PropertyDescriptor.Builder()
+        .name("Asynchronous Dispatch")
+        .description("If true, messages are sent on an internal executor (virtual threads if supported by the JVM) instead of the worker thread. "
+            + "A flow file stays in the queue while its message is sent and is routed to success or failure by the first trigger after the send completed.")
+        .allowableValues("true", "false")
+        .defaultValue("false")
+        .required(true)
+        .build();
+
+    public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor.Builder()
+        .name("Max In-Flight Messages")
+        .description("Maximum number of messages sent concurrently in asynchronous dispatch")
+        .defaultValue("10")
+        .required(true)
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final String DIGEST_COUNT = "email.digest.count";
+
+    private static final byte[] DIGEST_SEPARATOR = "\n\n----\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * PutEmail reports the send event before the asynchronous send happened, the event is reported when the flow file is routed
+     */
+    private static final ProvenanceReporter DEFERRED_PROVENANCE = (ProvenanceReporter) Proxy.newProxyInstance(
+        ProvenanceReporter.class.getClassLoader(), new Class<?>[]{ProvenanceReporter.class}, (proxy, method, args) -> null);
+
+    /**
+     * how long a trigger without work waits for a running send to complete
+     */
+    private static final long COMPLETION_WAIT_MILLIS = 100;
+
+    private static final Pattern NON_ASCII_PATTERN = Pattern.compile("[^\\x00-\\x7F]");
+
+    private final SmtpTransportPool transportPool = new SmtpTransportPool();
+    private volatile SmtpStatistics statistics = new SmtpStatistics();
+    private volatile boolean reuseConnection;
+    private volatile boolean streamAttachment;
+    private volatile TokenBucket globalLimit;
+    private volatile Map<String, TokenBucket> domainLimits = Collections.emptyMap();
+
+    /**
+     * asynchronous sends by flow file uuid, kept across stop and start so a completed send is not repeated
+     */
+    private final ConcurrentMap<String, Dispatch> dispatches = new ConcurrentHashMap<>();
+
+    /**
+     * completed sends whose flow files are not routed yet
+     */
+    private final BlockingQueue<Dispatch> completed = new LinkedBlockingQueue<>();
+    private volatile ExecutorService dispatchExecutor;
+    private volatile Semaphore inFlight;
+
+    /**
+     * how long a stop waits for the running sends, shortened by tests
+     */
+    long stopTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+    private List<PropertyDescriptor> descriptors;
+
+    /**
+     * custom headers of the dynamic properties, compiled when scheduled
+     */
+    private volatile List<CustomHeader> customHeaders = Collections.emptyList();
+
+    /**
+     * flow file which is sent by the current thread
+     */
+    private final ThreadLocal<Delivery> delivery = new ThreadLocal<>();
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        super.init(context);
+        final List<PropertyDescriptor> descriptors = new ArrayList<>(super.getSupportedPropertyDescriptors());
+        descriptors.add(REUSE_CONNECTION);
+        descriptors.add(CONNECTION_IDLE_TIMEOUT);
+        descriptors.add(MAX_MESSAGES_PER_CONNECTION);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(DIGEST_WINDOW);
+        descriptors.add(DIGEST_MAX_MESSAGES);
+        descriptors.add(DIGEST_MAX_BODY_SIZE);
+        descriptors.add(STREAM_ATTACHMENT);
+        descriptors.add(DOMAIN_RATE_LIMITS);
+        descriptors.add(GLOBAL_RATE_LIMIT);
+        descriptors.add(ASYNC_DISPATCH);
+        descriptors.add(MAX_IN_FLIGHT);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(context));
+        if (context.getProperty(DIGEST_WINDOW).isSet() && !"true".equalsIgnoreCase(context.getProperty(CONTENT_AS_MESSAGE).getValue())) {
+            results.add(new ValidationResult.Builder()
+                .subject(DIGEST_WINDOW.getDisplayName())
+                .valid(false)
+                .explanation("a digest combines the flow file contents, " + CONTENT_AS_MESSAGE.getDisplayName() + " has to be true")
+                .build());
+        }
+        if ("true".equalsIgnoreCase(context.getProperty(ASYNC_DISPATCH).getValue())) {
+            if (context.getProperty(DIGEST_WINDOW).isSet()) {
+                results.add(new ValidationResult.Builder()
+                    .subject(ASYNC_DISPATCH.getDisplayName())
+                    .valid(false)
+                    .explanation("not supported together with " + DIGEST_WINDOW.getDisplayName())
+                    .build());
+            }
+            if ("true".equalsIgnoreCase(context.getProperty(STREAM_ATTACHMENT).getValue())) {
+                results.add(new ValidationResult.Builder()
+                    .subject(ASYNC_DISPATCH.getDisplayName())
+                    .valid(false)
+                    .explanation("a streamed attachment is read within the session, " + STREAM_ATTACHMENT.getDisplayName() + " has to be false")
+                    .build());
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void configureTransportPool(final ProcessContext context) {
+        reuseConnection = context.getProperty(REUSE_CONNECTION).asBoolean() || context.getProperty(BATCH_SIZE).asInteger() > 1;
+        statistics = new SmtpStatistics();
+        transportPool.configure(context.getProperty(CONNECTION_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+            context.getProperty(MAX_MESSAGES_PER_CONNECTION).asInteger());
+    }
+
+    @OnScheduled
+    public void startDispatcher(final ProcessContext context) {
+        if (context.getProperty(ASYNC_DISPATCH).asBoolean()) {
+            final int maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+            inFlight = new Semaphore(maxInFlight);
+            dispatchExecutor = newDispatchExecutor(maxInFlight);
+        }
+    }
+
+    @OnStopped
+    public void closeTransportPool() {
+        stopDispatcher();
+        transportPool.close();
+    }
+
+    /**
+     * waits for the running sends, their flow files are routed after the next start
+     */
+    private void stopDispatcher() {
+        final ExecutorService executor = dispatchExecutor;
+        dispatchExecutor = null;
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(stopTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                abandon(executor.shutdownNow());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(executor.shutdownNow());
+        }
+    }
+
+    /**
+     * forgets the sends which never started, so their flow files are dispatched again after the next start,
+     * and fails the sends which are still running, the message may have been sent or not
+     */
+    private void abandon(final List<Runnable> notStarted) {
+        for (final Runnable task : notStarted) {
+            dispatches.remove(((DispatchTask) task).dispatch.uuid);
+        }
+        int running = 0;
+        for (final Dispatch dispatch : dispatches.values()) {
+            if (dispatch.settle(new ProcessException("Processor stopped while the email was sent"), 0)) {
+                completed.offer(dispatch);
+                running++;
+            }
+        }
+        getLogger().warn("Stopped with {} sends still running and {} not started, the running ones are routed to failure and the others sent again after the next start",
+            new Object[]{running, notStarted.size()});
+    }
+
+    /**
+     * virtual thread per task if supported by the JVM (Java 21+), otherwise a fixed pool of the in-flight limit
+     */
+    private static ExecutorService newDispatchExecutor(final int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads, runnable -> {
+                final Thread thread = new Thread(runnable, "SendEmail dispatch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @OnScheduled
+    public void configureAttachment(final ProcessContext context) {
+        streamAttachment = context.getProperty(STREAM_ATTACHMENT).asBoolean() && context.getProperty(ATTACH_FILE).asBoolean();
+    }
+
+    /**
+     * if the attachment is streamed, PutEmail must not load it, it is added in {@link #send(Message)}
+     */
+    private ProcessContext sendContext(final ProcessContext context) {
+        return streamAttachment ? PropertyOverrideContext.override(context, ATTACH_FILE, "false") : context;
+    }
+
+    @OnScheduled
+    public void configureRateLimits(final ProcessContext context) {
+        final Map<String, TokenBucket> limits = new HashMap<>();
+        if (context.getProperty(DOMAIN_RATE_LIMITS).isSet()) {
+            parseRateLimits(context.getProperty(DOMAIN_RATE_LIMITS).getValue()).forEach((domain, rate) -> limits.put(domain, new TokenBucket(rate)));
+        }
+        domainLimits = Collections.unmodifiableMap(limits);
+        globalLimit = context.getProperty(GLOBAL_RATE_LIMIT).isSet()
+            ? new TokenBucket(Double.parseDouble(context.getProperty(GLOBAL_RATE_LIMIT).getValue()))
+            : null;
+    }
+
+    @OnScheduled
+    public void compileCustomHeaders(final ProcessContext context) {
+        final List<CustomHeader> headers = new ArrayList<>();
+        for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (descriptor.isDynamic()) {
+                headers.add(new CustomHeader("X-" + NON_ASCII_PATTERN.matcher(descriptor.getName()).replaceAll(""), context.getProperty(descriptor)));
+            }
+        }
+        customHeaders = Collections.unmodifiableList(headers);
+    }
 
     @Override public void onTrigger(ProcessContext context, ProcessSession session) {
-        customHeaderMap = new HashMap<>();
-        context.getProperties()
-            .keySet()
-            .stream()
-            .filter(PropertyDescriptor::isDynamic)
-            .forEach(k -> {
-                if (ASCII_PATTERN.matcher(k.getName()).matches()) {
-                    customHeaderMap.put("X-" + k.getName(), context.getProperties().get(k));
-                } else {
-                    customHeaderMap.put("X-" + k.getName().replaceAll("[^\\x00-\\x7F]",""), context.getProperties().get(k));
+        if (context.getProperty(DIGEST_WINDOW).isSet()) {
+            try {
+                onTriggerDigest(context, session);
+            } finally {
+                delivery.remove();
+            }
+            return;
+        }
+        if (dispatchExecutor != null) {
+            onTriggerAsync(context, session);
+            return;
+        }
+
+        final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        final AtomicBoolean received = new AtomicBoolean();
+        final ProcessSession interceptedSession = new SessionInterceptor(session) {
+            @Override
+            protected FlowFile get() {
+                final FlowFile flowFile = super.get();
+                received.set(flowFile != null);
+                if (flowFile != null && requeueIfLimited(context, session, flowFile)) {
+                    return null;
                 }
-            });
-        super.onTrigger(context, session);
+                if (flowFile != null) {
+                    delivery.set(new Delivery(session, flowFile, evaluateCustomHeaders(flowFile)));
+                }
+                return flowFile;
+            }
+
+            @Override
+            protected void transfer(final FlowFile flowFile, final Relationship relationship) {
+                recordOutcome(session, relationship);
+                session.transfer(flowFile, relationship);
+            }
+        }.proxy();
+        final ProcessContext sendContext = sendContext(context);
+        try {
+            int count = 0;
+            do {
+                super.onTrigger(sendContext, interceptedSession);
+            } while (received.get() && ++count < batchSize && isScheduled());
+        } finally {
+            delivery.remove();
+        }
+    }
+
+    /**
+     * routes the flow files whose send completed and hands new flow files to the dispatch executor,
+     * flow files with a running send stay in the queue and are skipped by the scan
+     */
+    private void onTriggerAsync(final ProcessContext context, final ProcessSession session) {
+        final Semaphore inFlight = this.inFlight;
+        final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        final Map<String, Dispatch> ready = new HashMap<>();
+        for (Dispatch dispatch; ready.size() < batchSize && (dispatch = completed.poll()) != null; ) {
+            ready.put(dispatch.uuid, dispatch);
+        }
+        if (ready.isEmpty() && inFlight.availablePermits() == 0) {
+            // nothing to route and nothing to send, wait for the next send to complete
+            final Dispatch dispatch = awaitCompletion();
+            if (dispatch == null) {
+                return;
+            }
+            ready.put(dispatch.uuid, dispatch);
+        }
+
+        final int freePermits = Math.min(inFlight.availablePermits(), batchSize - ready.size());
+        final int[] accepted = new int[2];
+        final List<FlowFile> flowFiles = session.get(flowFile -> {
+            if (accepted[0] >= ready.size() && accepted[1] >= freePermits) {
+                return FlowFileFilter.FlowFileFilterResult.REJECT_AND_TERMINATE;
+            }
+            final String uuid = flowFile.getAttribute(CoreAttributes.UUID.key());
+            final Dispatch dispatch = dispatches.get(uuid);
+            if (ready.containsKey(uuid)) {
+                accepted[0]++;
+            } else if (dispatch != null) {
+                // completed ones missed by an earlier scan are routed as well
+                return dispatch.done ? FlowFileFilter.FlowFileFilterResult.ACCEPT_AND_CONTINUE : FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE;
+            } else if (accepted[1] < freePermits) {
+                accepted[1]++;
+            } else {
+                return FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE;
+            }
+            return FlowFileFilter.FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+        });
+
+        for (final FlowFile flowFile : flowFiles) {
+            final Dispatch dispatch = dispatches.remove(flowFile.getAttribute(CoreAttributes.UUID.key()));
+            if (dispatch != null) {
+                complete(session, flowFile, dispatch);
+            } else {
+                dispatch(context, session, flowFile, inFlight);
+            }
+        }
+        // a ready dispatch not found stays in dispatches, its flow file is not committed back to the queue yet and is routed by a later scan
+        if (flowFiles.isEmpty()) {
+            if (inFlight.availablePermits() < context.getProperty(MAX_IN_FLIGHT).asInteger()) {
+                final Dispatch dispatch = awaitCompletion();
+                if (dispatch != null) {
+                    completed.offer(dispatch);
+                }
+            } else {
+                context.yield();
+            }
+        }
+    }
+
+    /**
+     * @return the next completed send, or null if none completed within a short wait
+     */
+    private Dispatch awaitCompletion() {
+        try {
+            return completed.poll(COMPLETION_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * lets PutEmail build the message of the flow file, the message is sent on the dispatch executor and the flow file goes back to the queue.
+     * The in-flight permit is taken here and released by the send, or right away if nothing was submitted.
+     */
+    private void dispatch(final ProcessContext context, final ProcessSession session, final FlowFile flowFile, final Semaphore inFlight) {
+        if (!inFlight.tryAcquire()) {
+            // taken by a concurrent task since the queue was scanned
+            session.transfer(flowFile);
+            return;
+        }
+        final AtomicBoolean submitted = new AtomicBoolean();
+        try {
+            super.onTrigger(context, new SessionInterceptor(session) {
+                private boolean delivered;
+
+                @Override
+                protected FlowFile get() {
+                    if (delivered || requeueIfLimited(context, session, flowFile)) {
+                        return null;
+                    }
+                    delivered = true;
+                    delivery.set(new Delivery(session, flowFile, evaluateCustomHeaders(flowFile), true));
+                    return flowFile;
+                }
+
+                @Override
+                protected ProvenanceReporter getProvenanceReporter() {
+                    return DEFERRED_PROVENANCE;
+                }
+
+                @Override
+                protected void transfer(final FlowFile flowFile, final Relationship relationship) {
+                    final Delivery current = delivery.get();
+                    if (REL_SUCCESS.equals(relationship) && current != null && current.message != null) {
+                        submit(flowFile, current.message, inFlight);
+                        submitted.set(true);
+                        session.transfer(flowFile);
+                    } else {
+                        recordOutcome(session, relationship);
+                        session.transfer(flowFile, relationship);
+                    }
+                }
+            }.proxy());
+        } finally {
+            delivery.remove();
+            if (!submitted.get()) {
+                inFlight.release();
+            }
+        }
+    }
+
+    private void submit(final FlowFile flowFile, final Message message, final Semaphore inFlight) {
+        final String uuid = flowFile.getAttribute(CoreAttributes.UUID.key());
+        final Dispatch dispatch;
+        try {
+            dispatch = new Dispatch(uuid, "mailto:" + message.getAllRecipients()[0].toString());
+        } catch (final MessagingException e) {
+            throw new ProcessException("Unable to get recipients due to " + e.getMessage(), e);
+        }
+        final ExecutorService executor = dispatchExecutor;
+        if (executor == null) {
+            throw new ProcessException("Processor is stopping, unable to send email");
+        }
+        dispatches.put(uuid, dispatch);
+        try {
+            executor.execute(new DispatchTask(dispatch, message, inFlight));
+        } catch (final RejectedExecutionException e) {
+            dispatches.remove(uuid);
+            throw new ProcessException("Processor is stopping, unable to send email", e);
+        }
+    }
+
+    /**
+     * routes a flow file whose asynchronous send completed like PutEmail does
+     */
+    private void complete(final ProcessSession session, final FlowFile flowFile, final Dispatch dispatch) {
+        recordOutcome(session, dispatch.failure == null ? REL_SUCCESS : REL_FAILURE);
+        if (dispatch.failure == null) {
+            session.getProvenanceReporter().send(flowFile, dispatch.transitUri, dispatch.millis);
+            session.transfer(flowFile, REL_SUCCESS);
+            getLogger().debug("Sent email as a result of receiving {}", new Object[]{flowFile});
+        } else {
+            getLogger().error("Failed to send email for {}: {}; routing to failure", new Object[]{flowFile, dispatch.failure.getMessage()}, dispatch.failure);
+            session.transfer(flowFile, REL_FAILURE);
+        }
+    }
+
+    /**
+     * @return true if the flow file exceeds a rate limit and was penalized and transferred back to the queue
+     */
+    private boolean requeueIfLimited(final ProcessContext context, final ProcessSession session, final FlowFile flowFile) {
+        if (acquireRate(context, flowFile)) {
+            return false;
+        }
+        session.transfer(session.penalize(flowFile));
+        session.adjustCounter("Re-queued by rate limit", 1, false);
+        return true;
+    }
+
+    /**
+     * sends a digest for every recipients and subject key whose window elapsed or which reached the maximum number of messages,
+     * all other flow files stay in the queue
+     */
+    private void onTriggerDigest(final ProcessContext context, final ProcessSession session) {
+        final Map<String, List<FlowFile>> digests = QueueWindow.pollReady(session, flowFile -> digestKey(context, flowFile),
+            context.getProperty(DIGEST_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS), context.getProperty(DIGEST_MAX_MESSAGES).asInteger());
+        if (digests.isEmpty()) {
+            context.yield();
+            return;
+        }
+
+        for (final List<FlowFile> sources : digests.values()) {
+            if (acquireRate(context, sources.get(0))) {
+                sendDigest(context, session, sources);
+            } else {
+                for (final FlowFile source : sources) {
+                    session.transfer(session.penalize(source));
+                }
+                session.adjustCounter("Re-queued by rate limit", sources.size(), false);
+            }
+        }
+    }
+
+    /**
+     * takes a token of the global limit and of the limit of every recipient domain, nothing is taken if one of them is exhausted
+     */
+    private boolean acquireRate(final ProcessContext context, final FlowFile flowFile) {
+        final Map<String, TokenBucket> domainLimits = this.domainLimits;
+        final TokenBucket globalLimit = this.globalLimit;
+        if (domainLimits.isEmpty() && globalLimit == null) {
+            return true;
+        }
+
+        final List<TokenBucket> buckets = new ArrayList<>();
+        if (globalLimit != null) {
+            buckets.add(globalLimit);
+        }
+        if (!domainLimits.isEmpty()) {
+            for (final String domain : recipientDomains(context, flowFile)) {
+                final TokenBucket bucket = domainLimits.get(domain);
+                if (bucket != null) {
+                    buckets.add(bucket);
+                }
+            }
+        }
+
+        final List<TokenBucket> acquired = new ArrayList<>();
+        for (final TokenBucket bucket : buckets) {
+            if (!bucket.tryAcquire()) {
+                acquired.forEach(TokenBucket::release);
+                return false;
+            }
+            acquired.add(bucket);
+        }
+        return true;
+    }
+
+    private static Set<String> recipientDomains(final ProcessContext context, final FlowFile flowFile) {
+        final Set<String> domains = new HashSet<>();
+        for (final PropertyDescriptor recipients : new PropertyDescriptor[]{TO, CC, BCC}) {
+            final String value = context.getProperty(recipients).evaluateAttributeExpressions(flowFile).getValue();
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            try {
+                for (final InternetAddress address : InternetAddress.parse(value, false)) {
+                    final String email = address.getAddress();
+                    if (email != null && email.indexOf('@') >= 0) {
+                        domains.add(email.substring(email.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT));
+                    }
+                }
+            } catch (final AddressException e) {
+                // invalid recipients are reported by PutEmail
+            }
+        }
+        return domains;
+    }
+
+    /**
+     * @param value comma separated domain=rate
+     * @return rate per domain in lower case
+     * @throws IllegalArgumentException if an entry is not valid
+     */
+    static Map<String, Double> parseRateLimits(final String value) {
+        final Map<String, Double> limits = new LinkedHashMap<>();
+        for (final String entry : value.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final int separator = entry.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("'" + entry.trim() + "' is not of the form domain=rate");
+            }
+            final String domain = entry.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            final double rate;
+            try {
+                rate = Double.parseDouble(entry.substring(separator + 1).trim());
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("rate of '" + domain + "' is not a number");
+            }
+            if (domain.isEmpty() || rate <= 0) {
+                throw new IllegalArgumentException("'" + entry.trim() + "' needs a domain and a positive rate");
+            }
+            limits.put(domain, rate);
+        }
+        return limits;
+    }
+
+    private static Validator rateLimitsValidator() {
+        return (subject, input, context) -> {
+            try {
+                parseRateLimits(input);
+                return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+            } catch (final IllegalArgumentException e) {
+                return new ValidationResult.Builder().subject(subject).input(input).valid(false).explanation(e.getMessage()).build();
+            }
+        };
+    }
+
+    private static Validator positiveRateValidator() {
+        return (subject, input, context) -> {
+            boolean valid;
+            try {
+                valid = Double.parseDouble(input) > 0;
+            } catch (final NumberFormatException e) {
+                valid = false;
+            }
+            return new ValidationResult.Builder().subject(subject).input(input).valid(valid).explanation("rate must be a positive number").build();
+        };
+    }
+
+    private static String digestKey(final ProcessContext context, final FlowFile flowFile) {
+        return context.getProperty(TO).evaluateAttributeExpressions(flowFile).getValue()
+            + "\n" + context.getProperty(CC).evaluateAttributeExpressions(flowFile).getValue()
+            + "\n" + context.getProperty(BCC).evaluateAttributeExpressions(flowFile).getValue()
+            + "\n" + context.getProperty(SUBJECT).evaluateAttributeExpressions(flowFile).getValue();
+    }
+
+    /**
+     * sends the combined contents with the attributes of the first source, the sources are routed like the digest.
+     * The digest is removed within the session, so the send event is reported for every source, failed sources are penalized.
+     */
+    private void sendDigest(final ProcessContext context, final ProcessSession session, final List<FlowFile> sources) {
+        final long maxBodySize = context.getProperty(DIGEST_MAX_BODY_SIZE).asDataSize(DataUnit.B).longValue();
+        final Map<String, String> attributes = new HashMap<>(sources.get(0).getAttributes());
+        attributes.remove(CoreAttributes.UUID.key());
+        attributes.put(DIGEST_COUNT, Integer.toString(sources.size()));
+
+        FlowFile digest = session.putAllAttributes(session.create(sources), attributes);
+        digest = session.write(digest, out -> {
+            long written = 0;
+            int included = 0;
+            for (final FlowFile source : sources) {
+                if (written >= maxBodySize) {
+                    break;
+                }
+                if (included > 0) {
+                    out.write(DIGEST_SEPARATOR);
+                    written += DIGEST_SEPARATOR.length;
+                }
+                try (final InputStream in = session.read(source)) {
+                    written += StreamUtils.copy(new LimitingInputStream(in, Math.max(0, maxBodySize - written)), out);
+                }
+                included++;
+            }
+            if (included < sources.size()) {
+                out.write(("\n\n[" + (sources.size() - included) + " more messages omitted]").getBytes(StandardCharsets.UTF_8));
+            }
+        });
+
+        final FlowFile digestFlowFile = digest;
+        super.onTrigger(sendContext(context), new SessionInterceptor(session) {
+            private boolean delivered;
+
+            @Override
+            protected FlowFile get() {
+                if (delivered) {
+                    return null;
+                }
+                delivered = true;
+                delivery.set(new Delivery(session, digestFlowFile, evaluateCustomHeaders(digestFlowFile)));
+                return digestFlowFile;
+            }
+
+            @Override
+            protected ProvenanceReporter getProvenanceReporter() {
+                final ProvenanceReporter reporter = session.getProvenanceReporter();
+                return (ProvenanceReporter) Proxy.newProxyInstance(ProvenanceReporter.class.getClassLoader(), new Class<?>[]{ProvenanceReporter.class},
+                    (proxy, method, args) -> {
+                        try {
+                            if ("send".equals(method.getName()) && args != null && args.length > 0 && args[0] instanceof FlowFile) {
+                                for (final FlowFile source : sources) {
+                                    final Object[] sourceArgs = args.clone();
+                                    sourceArgs[0] = source;
+                                    method.invoke(reporter, sourceArgs);
+                                }
+                                return null;
+                            }
+                            return method.invoke(reporter, args);
+                        } catch (final InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+            }
+
+            @Override
+            protected void transfer(final FlowFile flowFile, final Relationship relationship) {
+                recordOutcome(session, relationship);
+                session.remove(flowFile);
+                for (final FlowFile source : sources) {
+                    session.transfer(REL_FAILURE.equals(relationship) ? session.penalize(source) : source, relationship);
+                }
+            }
+        }.proxy());
+    }
+
+    private void recordOutcome(final ProcessSession session, final Relationship relationship) {
+        if (REL_SUCCESS.equals(relationship)) {
+            statistics.recordMessages(1);
+            session.adjustCounter("Emails Sent", 1, false);
+        } else if (REL_FAILURE.equals(relationship)) {
+            statistics.recordFailures(1);
+            session.adjustCounter("Email Failures", 1, false);
+        }
+    }
+
+    /**
+     * @return readable counters and SMTP phase latencies since the processor was scheduled
+     */
+    public Map<String, String> getSendStatistics() {
+        return statistics.summary();
+    }
+
+    /**
+     * reports every counter and phase histogram of the send statistics as a verification step
+     */
+    @Override
+    public List<ConfigVerificationResult> verify(final ProcessContext context, final ComponentLog verificationLogger, final Map<String, String> attributes) {
+        final SmtpStatistics statistics = this.statistics;
+        if (statistics.getMessages() == 0 && statistics.getFailures() == 0) {
+            return Collections.singletonList(new ConfigVerificationResult.Builder()
+                .verificationStepName("Send Statistics")
+                .outcome(ConfigVerificationResult.Outcome.SKIPPED)
+                .explanation("No emails sent since the processor was scheduled")
+                .build());
+        }
+        final List<ConfigVerificationResult> results = new ArrayList<>();
+        statistics.summary().forEach((name, value) -> results.add(new ConfigVerificationResult.Builder()
+            .verificationStepName("Send Statistics " + name)
+            .outcome(ConfigVerificationResult.Outcome.SUCCESSFUL)
+            .explanation(value)
+            .build()));
+        return results;
+    }
+
+    private Map<String, String> evaluateCustomHeaders(final FlowFile flowFile) {
+        final Map<String, String> headers = new LinkedHashMap<>();
+        for (final CustomHeader header : customHeaders) {
+            headers.put(header.name, header.encode(flowFile));
+        }
+        return headers;
     }
 
     @Override
@@ -50,19 +890,188 @@ public class SendEmail extends PutEmail {
             .name(propertyDescriptorName)
             .addValidator(StandardValidators.createRegexValidator(0, Integer.MAX_VALUE, true))
             .dynamic(true)
-            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
     }
 
     @Override protected void send(Message msg) throws MessagingException {
-        for (Map.Entry<String, String> e : customHeaderMap.entrySet()) {
-            getLogger().info("add '{}' to mail with value '{}'", e.getKey(), e.getValue());
+        TimedSmtpTransport.instrument(msg.getSession(), statistics);
+        final Delivery current = delivery.get();
+        if (current != null) {
+            final boolean debug = getLogger().isDebugEnabled();
+            for (Map.Entry<String, String> e : current.headers.entrySet()) {
+                if (debug) {
+                    getLogger().debug("add '{}' to mail with value '{}'", e.getKey(), e.getValue());
+                }
+                msg.setHeader(e.getKey(), e.getValue());
+            }
+            if (!current.headers.isEmpty()) {
+                statistics.recordHeaders(current.headers.size());
+                current.session.adjustCounter("Custom Headers", current.headers.size(), false);
+            }
+            statistics.recordMessageSize(current.flowFile.getSize());
+            if (streamAttachment) {
+                attach(msg, current);
+            }
+            if (current.capture) {
+                current.message = msg;
+                return;
+            }
+        }
+        deliver(msg);
+    }
+
+    /**
+     * sends on a pooled connection if connections are reused, otherwise like PutEmail
+     */
+    private void deliver(final Message msg) throws MessagingException {
+        if (reuseConnection) {
+            transportPool.send(msg);
+        } else {
+            super.send(msg);
+        }
+    }
+
+    /**
+     * replaces the body by a multipart of the body and the flow file content which is read lazily while the message is written
+     */
+    private static void attach(final Message msg, final Delivery current) throws MessagingException {
+        final MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setDataHandler(msg.getDataHandler());
+
+        final FlowFile flowFile = current.flowFile;
+        final String mimeType = flowFile.getAttribute(CoreAttributes.MIME_TYPE.key());
+        final MimeBodyPart filePart = new MimeBodyPart();
+        filePart.setDataHandler(new DataHandler(new FlowFileDataSource(current.session, flowFile,
+            mimeType == null ? "application/octet-stream" : mimeType)));
+        try {
+            filePart.setFileName(MimeUtility.encodeText(flowFile.getAttribute(CoreAttributes.FILENAME.key())));
+        } catch (UnsupportedEncodingException ex) {
+            throw new ProcessException(ex.getMessage(), ex);
+        }
+        // a preset encoding keeps MimeUtility from reading the whole content to choose one
+        filePart.setHeader("Content-Transfer-Encoding", "base64");
+
+        final MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(textPart);
+        multipart.addBodyPart(filePart);
+        msg.setContent(multipart);
+    }
+
+    /**
+     * session, flow file and encoded custom headers of the message which is sent by the current thread
+     */
+    private static class Delivery {
+
+        private final ProcessSession session;
+        private final FlowFile flowFile;
+        private final Map<String, String> headers;
+
+        /**
+         * if true, the message is kept in {@link #message} instead of being sent
+         */
+        private final boolean capture;
+        private Message message;
+
+        Delivery(final ProcessSession session, final FlowFile flowFile, final Map<String, String> headers) {
+            this(session, flowFile, headers, false);
+        }
+
+        Delivery(final ProcessSession session, final FlowFile flowFile, final Map<String, String> headers, final boolean capture) {
+            this.session = session;
+            this.flowFile = flowFile;
+            this.headers = headers;
+            this.capture = capture;
+        }
+    }
+
+    /**
+     * state of an asynchronous send
+     */
+    /**
+     * sends the message of a dispatch, the task is kept so a stop can tell the sends which never started
+     */
+    private class DispatchTask implements Runnable {
+
+        private final Dispatch dispatch;
+        private final Message message;
+        private final Semaphore inFlight;
+
+        DispatchTask(final Dispatch dispatch, final Message message, final Semaphore inFlight) {
+            this.dispatch = dispatch;
+            this.message = message;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            Exception failure = null;
+            try {
+                deliver(message);
+            } catch (final Exception e) {
+                failure = e;
+            } finally {
+                if (dispatch.settle(failure, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))) {
+                    completed.offer(dispatch);
+                }
+                inFlight.release();
+            }
+        }
+    }
+
+    private static class Dispatch {
+
+        private final String uuid;
+        private final String transitUri;
+        private volatile Exception failure;
+        private volatile long millis;
+        private volatile boolean done;
+
+        Dispatch(final String uuid, final String transitUri) {
+            this.uuid = uuid;
+            this.transitUri = transitUri;
+        }
+
+        /**
+         * @return false if the dispatch was settled already, e.g. failed by a stop while it was still running
+         */
+        synchronized boolean settle(final Exception failure, final long millis) {
+            if (done) {
+                return false;
+            }
+            this.failure = failure;
+            this.millis = millis;
+            done = true;
+            return true;
+        }
+    }
+
+    /**
+     * header name and value of a dynamic property, a value without expression language is encoded only once
+     */
+    private static class CustomHeader {
+
+        private final String name;
+        private final PropertyValue value;
+        private final String encodedValue;
+
+        CustomHeader(final String name, final PropertyValue value) {
+            this.name = name;
+            this.value = value;
+            this.encodedValue = value.isExpressionLanguagePresent() ? null : encode(value.getValue());
+        }
+
+        String encode(final FlowFile flowFile) {
+            return encodedValue != null ? encodedValue : encode(value.evaluateAttributeExpressions(flowFile).getValue());
+        }
+
+        private static String encode(final String text) {
             try {
-                msg.setHeader(e.getKey(), MimeUtility.encodeText(e.getValue()));
+                return MimeUtility.encodeText(text == null ? "" : text);
             } catch (UnsupportedEncodingException ex) {
-                throw new MessagingException(ex.getMessage(), ex);
+                throw new ProcessException(ex.getMessage(), ex);
             }
         }
-        super.send(msg);
     }
 }
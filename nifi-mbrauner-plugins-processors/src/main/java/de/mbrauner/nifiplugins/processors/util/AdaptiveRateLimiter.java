@@ -0,0 +1,63 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+/**
+ * rate limit which adapts to the rate a server accepts: every accepted request increases the rate additively,
+ * a throttled request halves it and blocks all requests for the time the server asked for (AIMD)
+ */
+public class AdaptiveRateLimiter {
+
+    private static final double MIN_RATE = 0.1d;
+
+    private final TokenBucket bucket;
+    private final double maxRate;
+    private volatile long blockedUntil;
+
+    /**
+     * @param initialRate requests per second to start with
+     * @param maxRate     the rate is never increased above
+     */
+    public AdaptiveRateLimiter(final double initialRate, final double maxRate) {
+        this.bucket = new TokenBucket(Math.min(initialRate, maxRate));
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * @return true if a request may be sent now
+     */
+    public boolean tryAcquire() {
+        return System.currentTimeMillis() >= blockedUntil && bucket.tryAcquire();
+    }
+
+    public void onSuccess() {
+        synchronized (bucket) {
+            final double rate = bucket.getRate();
+            if (rate < maxRate) {
+                // a full second of accepted requests increases the rate by one request per second
+                bucket.setRate(Math.min(maxRate, rate + 1d / rate));
+            }
+        }
+    }
+
+    /**
+     * @param retryAfterMillis time the server asked to wait, 0 if unknown
+     */
+    public void onThrottled(final long retryAfterMillis) {
+        synchronized (bucket) {
+            bucket.setRate(Math.max(MIN_RATE, bucket.getRate() / 2));
+        }
+        if (retryAfterMillis > 0) {
+            final long until = System.currentTimeMillis() + retryAfterMillis;
+            if (until > blockedUntil) {
+                blockedUntil = until;
+            }
+        }
+    }
+
+    public double getRate() {
+        return bucket.getRate();
+    }
+
+    public long getBlockedUntil() {
+        return blockedUntil;
+    }
+}
@@ -0,0 +1,78 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import net.schmizz.sshj.transport.verification.HostKeyVerifier;
+import net.schmizz.sshj.transport.verification.OpenSSHKnownHosts;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * verifies host keys against an OpenSSH known hosts file which is parsed once and parsed again when its modification time changes.
+ * Keys which were verified are remembered per host and port until the file changes, a changed key of a host is checked against the file again.
+ */
+public class CachedKnownHostsVerifier implements HostKeyVerifier {
+
+    private final Path file;
+    private final ConcurrentMap<String, PublicKey> verified = new ConcurrentHashMap<>();
+    private volatile OpenSSHKnownHosts knownHosts;
+    private volatile FileTime lastModified;
+
+    public CachedKnownHostsVerifier(final Path file) throws IOException {
+        this.file = file;
+        reload();
+    }
+
+    @Override
+    public boolean verify(final String hostname, final int port, final PublicKey key) {
+        final OpenSSHKnownHosts current = current();
+        final String hostAndPort = hostname + ":" + port;
+        if (key.equals(verified.get(hostAndPort))) {
+            return true;
+        }
+        if (current.verify(hostname, port, key)) {
+            verified.put(hostAndPort, key);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public List<String> findExistingAlgorithms(final String hostname, final int port) {
+        return current().findExistingAlgorithms(hostname, port);
+    }
+
+    /**
+     * @return number of hosts with a verified key
+     */
+    public int getVerifiedHosts() {
+        return verified.size();
+    }
+
+    private OpenSSHKnownHosts current() {
+        try {
+            if (!Files.getLastModifiedTime(file).equals(lastModified)) {
+                reload();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read known hosts " + file + " due to " + e.getMessage(), e);
+        }
+        return knownHosts;
+    }
+
+    private synchronized void reload() throws IOException {
+        final FileTime modified = Files.getLastModifiedTime(file);
+        if (modified.equals(lastModified)) {
+            return;
+        }
+        knownHosts = new OpenSSHKnownHosts(file.toFile());
+        verified.clear();
+        lastModified = modified;
+    }
+}
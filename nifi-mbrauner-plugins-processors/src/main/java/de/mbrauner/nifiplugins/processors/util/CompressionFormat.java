@@ -0,0 +1,58 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * streaming compression applied to the remote output stream of an upload
+ */
+public enum CompressionFormat {
+    NONE("", ""),
+    GZIP("gzip", ".gz"),
+    ZSTD("zstd", ".zst"),
+    LZ4("lz4", ".lz4");
+
+    private static final int GZIP_BUFFER_SIZE = 32 * 1024;
+
+    private final String value;
+    private final String suffix;
+
+    CompressionFormat(final String value, final String suffix) {
+        this.value = value;
+        this.suffix = suffix;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public OutputStream encode(final OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdCompressorOutputStream(out);
+            case LZ4:
+                return new FramedLZ4CompressorOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    public static CompressionFormat fromValue(final String value) {
+        for (final CompressionFormat format : values()) {
+            if (format.value.equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        return NONE;
+    }
+}
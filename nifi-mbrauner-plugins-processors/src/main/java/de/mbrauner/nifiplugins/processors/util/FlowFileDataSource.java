@@ -0,0 +1,45 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import jakarta.activation.DataSource;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link DataSource} which reads the content of a flow file lazily from the content repository
+ */
+public class FlowFileDataSource implements DataSource {
+
+    private final ProcessSession session;
+    private final FlowFile flowFile;
+    private final String contentType;
+
+    public FlowFileDataSource(final ProcessSession session, final FlowFile flowFile, final String contentType) {
+        this.session = session;
+        this.flowFile = flowFile;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return session.read(flowFile);
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw new UnsupportedOperationException("flow file content is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return flowFile.getAttribute(CoreAttributes.FILENAME.key());
+    }
+}
@@ -0,0 +1,135 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * circuit breaker per remote host, a host is opened when the number of failures within a time window reaches the threshold.
+ * After the open duration a single trial request is allowed, its outcome closes or re-opens the circuit.
+ */
+public class HostCircuitBreaker {
+
+    private final ConcurrentMap<String, HostState> states = new ConcurrentHashMap<>();
+
+    private volatile int failureThreshold;
+    private volatile long windowMillis;
+    private volatile long openMillis;
+
+    /**
+     * sets the limits and closes all circuits
+     *
+     * @param failureThreshold failures within the window to open a circuit, 0 disables the breaker
+     */
+    public void configure(final int failureThreshold, final long windowMillis, final long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.windowMillis = windowMillis;
+        this.openMillis = openMillis;
+        states.clear();
+    }
+
+    public boolean isEnabled() {
+        return failureThreshold > 0;
+    }
+
+    /**
+     * @return false if the circuit of the host is open and the request must not be attempted
+     */
+    public boolean allowRequest(final String host) {
+        if (!isEnabled()) {
+            return true;
+        }
+        final HostState state = states.get(host);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            if (state.openedAt < 0) {
+                return true;
+            }
+            if (!state.trialRunning && System.currentTimeMillis() - state.openedAt >= openMillis) {
+                state.trialRunning = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public void recordSuccess(final String host) {
+        if (!isEnabled()) {
+            return;
+        }
+        final HostState state = states.get(host);
+        if (state != null) {
+            synchronized (state) {
+                state.reset();
+            }
+        }
+    }
+
+    /**
+     * ends a trial request without an outcome, e.g. the flow file was rejected before it was transferred.
+     * The circuit stays open and the next request of the host becomes the trial.
+     */
+    public void releaseTrial(final String host) {
+        final HostState state = states.get(host);
+        if (state != null) {
+            synchronized (state) {
+                state.trialRunning = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if this failure opened the circuit of the host
+     */
+    public boolean recordFailure(final String host) {
+        if (!isEnabled()) {
+            return false;
+        }
+        final HostState state = states.computeIfAbsent(host, h -> new HostState());
+        final long now = System.currentTimeMillis();
+        synchronized (state) {
+            if (state.trialRunning) {
+                state.trialRunning = false;
+                state.openedAt = now;
+                return false;
+            }
+            if (state.openedAt >= 0) {
+                return false;
+            }
+            if (now - state.windowStart > windowMillis) {
+                state.windowStart = now;
+                state.failures = 0;
+            }
+            if (++state.failures >= failureThreshold) {
+                state.openedAt = now;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public boolean isOpen(final String host) {
+        final HostState state = states.get(host);
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            return state.openedAt >= 0;
+        }
+    }
+
+    private static class HostState {
+        private long windowStart;
+        private int failures;
+        private long openedAt = -1;
+        private boolean trialRunning;
+
+        private void reset() {
+            windowStart = 0;
+            failures = 0;
+            openedAt = -1;
+            trialRunning = false;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.processor.ProcessContext;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+/**
+ * dynamic proxy around a {@link ProcessContext} which returns a fixed value for one property,
+ * e.g. to switch off a feature of an extended processor of nifi-standard-processors which is replaced by the subclass
+ */
+public final class PropertyOverrideContext {
+
+    private PropertyOverrideContext() {
+    }
+
+    public static ProcessContext override(final ProcessContext context, final PropertyDescriptor descriptor, final String value) {
+        final PropertyValue propertyValue = context.newPropertyValue(value);
+        return (ProcessContext) Proxy.newProxyInstance(ProcessContext.class.getClassLoader(), new Class<?>[]{ProcessContext.class}, (proxy, method, args) -> {
+            if ("getProperty".equals(method.getName()) && args != null && args.length == 1
+                    && (descriptor.equals(args[0]) || descriptor.getName().equals(args[0]))) {
+                return propertyValue;
+            }
+            try {
+                return method.invoke(context, args);
+            } catch (final InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+}
@@ -0,0 +1,66 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * groups the queued flow files by a key and takes the groups whose oldest flow file waited for the window
+ * or which reached the maximum number of flow files, all other flow files stay in the queue
+ */
+public final class QueueWindow {
+
+    private QueueWindow() {
+    }
+
+    /**
+     * @param key          of the group of a flow file, e.g. recipients and subject
+     * @param windowMillis time the oldest flow file of a group waits for more flow files
+     * @param maxFlowFiles flow files which complete a group, a group never has more
+     * @return flow files of the ready groups in queue order, empty if no group is ready
+     */
+    public static Map<String, List<FlowFile>> pollReady(final ProcessSession session, final Function<FlowFile, String> key,
+                                                        final long windowMillis, final int maxFlowFiles) {
+        final long now = System.currentTimeMillis();
+        final Map<String, long[]> queued = new HashMap<>();
+        session.get(flowFile -> {
+            final long[] countAndOldest = queued.computeIfAbsent(key.apply(flowFile), k -> new long[]{0, Long.MAX_VALUE});
+            countAndOldest[0]++;
+            countAndOldest[1] = Math.min(countAndOldest[1], flowFile.getLastQueueDate() == null ? flowFile.getEntryDate() : flowFile.getLastQueueDate());
+            return FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE;
+        });
+        final Set<String> ready = new HashSet<>();
+        queued.forEach((group, countAndOldest) -> {
+            if (countAndOldest[0] >= maxFlowFiles || now - countAndOldest[1] >= windowMillis) {
+                ready.add(group);
+            }
+        });
+        final Map<String, List<FlowFile>> groups = new LinkedHashMap<>();
+        if (ready.isEmpty()) {
+            return groups;
+        }
+
+        session.get(flowFile -> {
+            final String group = key.apply(flowFile);
+            if (!ready.contains(group)) {
+                return FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE;
+            }
+            final List<FlowFile> flowFiles = groups.computeIfAbsent(group, k -> new ArrayList<>());
+            if (flowFiles.size() >= maxFlowFiles) {
+                return FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE;
+            }
+            flowFiles.add(flowFile);
+            return FlowFileFilter.FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+        });
+        return groups;
+    }
+}
@@ -0,0 +1,133 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.common.Factory;
+import net.schmizz.sshj.keepalive.KeepAliveProvider;
+import net.schmizz.sshj.transport.compression.DelayedZlibCompression;
+import net.schmizz.sshj.transport.compression.NoneCompression;
+import net.schmizz.sshj.transport.compression.ZlibCompression;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * sshj transport settings: algorithm preference, compression, keep-alive and socket buffer sizes
+ */
+public final class SSHTransportConfig {
+
+    private SSHTransportConfig() {
+    }
+
+    /**
+     * @param ciphers comma separated cipher names tried first in the given order, null or empty for the sshj default order
+     * @param macs    comma separated MAC names tried first in the given order, null or empty for the sshj default order
+     * @param compression offers zlib before no compression
+     */
+    public static DefaultConfig createConfig(final String ciphers, final String macs, final boolean compression, final boolean keepAlive) {
+        final DefaultConfig config = new DefaultConfig();
+        config.setCipherFactories(prefer(config.getCipherFactories(), ciphers));
+        config.setMACFactories(prefer(config.getMACFactories(), macs));
+        if (compression) {
+            config.setCompressionFactories(Arrays.asList(new DelayedZlibCompression.Factory(), new ZlibCompression.Factory(), new NoneCompression.Factory()));
+        }
+        if (keepAlive) {
+            config.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+        }
+        return config;
+    }
+
+    /**
+     * the preferred factories in the given order followed by all others in their default order
+     */
+    static <T> List<Factory.Named<T>> prefer(final List<Factory.Named<T>> factories, final String preferred) {
+        final List<String> names = names(preferred);
+        if (names.isEmpty()) {
+            return factories;
+        }
+        final List<Factory.Named<T>> ordered = new ArrayList<>(factories.size());
+        for (final String name : names) {
+            factories.stream().filter(factory -> factory.getName().equals(name)).findFirst().ifPresent(ordered::add);
+        }
+        factories.stream().filter(factory -> !ordered.contains(factory)).forEach(ordered::add);
+        return ordered;
+    }
+
+    /**
+     * accepts a comma separated list of names which are known to sshj
+     *
+     * @param factories the supported factories of a default config, e.g. {@code DefaultConfig::getCipherFactories}
+     */
+    public static Validator algorithmValidator(final Function<DefaultConfig, List<? extends Factory.Named<?>>> factories) {
+        return (subject, input, context) -> {
+            final List<String> supported = factories.apply(new DefaultConfig()).stream().map(Factory.Named::getName).collect(Collectors.toList());
+            final List<String> unknown = names(input).stream().filter(name -> !supported.contains(name)).collect(Collectors.toList());
+            return new ValidationResult.Builder()
+                    .subject(subject)
+                    .input(input)
+                    .valid(unknown.isEmpty())
+                    .explanation(unknown.isEmpty() ? null : "unsupported " + unknown + ", supported are " + supported)
+                    .build();
+        };
+    }
+
+    /**
+     * @return socket factory which sets send and receive buffer sizes before connecting
+     */
+    public static SocketFactory socketFactory(final int bufferSize) {
+        return new BufferSizeSocketFactory(bufferSize);
+    }
+
+    private static List<String> names(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(value.split(",")).map(String::trim).filter(name -> !name.isEmpty()).collect(Collectors.toList());
+    }
+
+    private static class BufferSizeSocketFactory extends SocketFactory {
+
+        private final int bufferSize;
+
+        BufferSizeSocketFactory(final int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            final Socket socket = new Socket();
+            socket.setReceiveBufferSize(bufferSize);
+            socket.setSendBufferSize(bufferSize);
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress, final int localPort) throws IOException {
+            return SocketFactory.getDefault().createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.provenance.ProvenanceReporter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * dynamic proxy around a {@link ProcessSession} to intercept single calls of an extended processor of nifi-standard-processors,
+ * subclasses override the hooks they need, all other calls go to the wrapped session
+ */
+public class SessionInterceptor implements InvocationHandler {
+
+    protected final ProcessSession session;
+
+    public SessionInterceptor(final ProcessSession session) {
+        this.session = session;
+    }
+
+    /**
+     * called for {@link ProcessSession#get()}
+     */
+    protected FlowFile get() {
+        return session.get();
+    }
+
+    /**
+     * called for {@link ProcessSession#transfer(FlowFile, Relationship)}
+     */
+    protected void transfer(final FlowFile flowFile, final Relationship relationship) {
+        session.transfer(flowFile, relationship);
+    }
+
+    /**
+     * called for {@link ProcessSession#getProvenanceReporter()}
+     */
+    protected ProvenanceReporter getProvenanceReporter() {
+        return session.getProvenanceReporter();
+    }
+
+    public ProcessSession proxy() {
+        return (ProcessSession) Proxy.newProxyInstance(ProcessSession.class.getClassLoader(), new Class<?>[]{ProcessSession.class}, this);
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if ("get".equals(method.getName()) && method.getParameterCount() == 0) {
+            return get();
+        }
+        if ("transfer".equals(method.getName()) && method.getParameterCount() == 2
+                && method.getParameterTypes()[0] == FlowFile.class && method.getParameterTypes()[1] == Relationship.class) {
+            transfer((FlowFile) args[0], (Relationship) args[1]);
+            return null;
+        }
+        if ("getProvenanceReporter".equals(method.getName()) && method.getParameterCount() == 0) {
+            return getProvenanceReporter();
+        }
+        try {
+            return method.invoke(session, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * in memory counters and latency histograms of the SMTP phases, recorded by {@link TimedSmtpTransport} for pooled and one-shot connections
+ */
+public class SmtpStatistics {
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder headers = new LongAdder();
+    private final Histogram connectMillis = new Histogram();
+    private final Histogram authMillis = new Histogram();
+    private final Histogram dataMillis = new Histogram();
+    private final Histogram messageBytes = new Histogram();
+
+    public void recordConnect(final long millis) {
+        connectMillis.record(millis);
+    }
+
+    public void recordAuth(final long millis) {
+        authMillis.record(millis);
+    }
+
+    public void recordData(final long millis) {
+        dataMillis.record(millis);
+    }
+
+    public void recordMessageSize(final long bytes) {
+        messageBytes.record(bytes);
+    }
+
+    public void recordHeaders(final int count) {
+        headers.add(count);
+    }
+
+    public void recordMessages(final int count) {
+        messages.add(count);
+    }
+
+    public void recordFailures(final int count) {
+        failures.add(count);
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return readable summary in a fixed order
+     */
+    public Map<String, String> summary() {
+        final Map<String, String> summary = new LinkedHashMap<>();
+        summary.put("messages", Long.toString(messages.sum()));
+        summary.put("failures", Long.toString(failures.sum()));
+        summary.put("custom headers", Long.toString(headers.sum()));
+        summary.put("connect millis", connectMillis.toString());
+        summary.put("auth millis", authMillis.toString());
+        summary.put("data millis", dataMillis.toString());
+        summary.put("message bytes", messageBytes.toString());
+        return summary;
+    }
+}
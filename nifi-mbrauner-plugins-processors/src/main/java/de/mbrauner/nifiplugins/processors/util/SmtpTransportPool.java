@@ -0,0 +1,214 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.PasswordAuthentication;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keeps connected and authenticated SMTP transports per server, user, password and mail session properties (e.g. STARTTLS) open across messages.
+ * A connection is closed after the idle timeout or the maximum number of messages.
+ * A reused connection which was idle for more than {@link #PROBE_AFTER_IDLE_MILLIS} is probed before the message is sent and replaced if the probe fails,
+ * a failure while sending is never retried as the server may already have accepted the message.
+ */
+public class SmtpTransportPool {
+
+    /**
+     * a connection used within this time is not probed, which saves a round trip per message of a busy connection
+     */
+    static final long PROBE_AFTER_IDLE_MILLIS = 5000;
+
+    private final Map<String, Deque<PooledTransport>> idle = new HashMap<>();
+
+    private volatile long idleTimeoutMillis;
+    private volatile int maxMessagesPerConnection;
+    private ScheduledExecutorService evictor;
+
+    /**
+     * sets the limits and starts closing idle connections in the background, {@link #close()} stops it
+     */
+    public synchronized void configure(final long idleTimeoutMillis, final int maxMessagesPerConnection) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "SMTP connection evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long period = Math.max(1000L, idleTimeoutMillis / 2);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * like {@link Transport#send(Message)} but on a pooled connection.
+     * Only a connection which fails the probe before the message is sent is replaced, a failure while sending is not retried.
+     */
+    public void send(final Message msg) throws MessagingException {
+        msg.saveChanges();
+        final Address[] recipients = msg.getAllRecipients();
+        final String key = key(msg.getSession());
+
+        PooledTransport transport = borrow(key);
+        while (transport != null && System.currentTimeMillis() - transport.lastUsed > PROBE_AFTER_IDLE_MILLIS && !isAlive(transport)) {
+            close(transport);
+            transport = borrow(key);
+        }
+        if (transport == null) {
+            transport = connect(msg.getSession());
+        }
+        try {
+            transport.transport.sendMessage(msg, recipients);
+        } catch (final SendFailedException e) {
+            release(key, transport);
+            throw e;
+        } catch (final MessagingException | IllegalStateException e) {
+            close(transport);
+            throw e;
+        }
+        release(key, transport);
+    }
+
+    /**
+     * stops the background eviction and closes all idle connections
+     */
+    public void close() {
+        synchronized (this) {
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+        final List<PooledTransport> transports = new ArrayList<>();
+        synchronized (idle) {
+            idle.values().forEach(transports::addAll);
+            idle.clear();
+        }
+        transports.forEach(SmtpTransportPool::close);
+    }
+
+    private PooledTransport borrow(final String key) {
+        evictIdle();
+        synchronized (idle) {
+            final Deque<PooledTransport> transports = idle.get(key);
+            return transports == null ? null : transports.pollFirst();
+        }
+    }
+
+    /**
+     * closes the connections which were not used within the idle timeout
+     */
+    void evictIdle() {
+        final List<PooledTransport> expired = new ArrayList<>();
+        synchronized (idle) {
+            final long now = System.currentTimeMillis();
+            for (final Iterator<Deque<PooledTransport>> deques = idle.values().iterator(); deques.hasNext(); ) {
+                final Deque<PooledTransport> transports = deques.next();
+                for (final Iterator<PooledTransport> iterator = transports.iterator(); iterator.hasNext(); ) {
+                    final PooledTransport transport = iterator.next();
+                    if (now - transport.lastUsed > idleTimeoutMillis) {
+                        iterator.remove();
+                        expired.add(transport);
+                    }
+                }
+                if (transports.isEmpty()) {
+                    deques.remove();
+                }
+            }
+        }
+        expired.forEach(SmtpTransportPool::close);
+    }
+
+    /**
+     * the SMTP transport probes the connection with NOOP (or RSET if mail.smtp.userset is true), nothing of the message has been sent yet
+     */
+    private static boolean isAlive(final PooledTransport transport) {
+        try {
+            return transport.transport.isConnected();
+        } catch (final IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private void release(final String key, final PooledTransport transport) {
+        transport.lastUsed = System.currentTimeMillis();
+        if (++transport.messages >= maxMessagesPerConnection) {
+            close(transport);
+            return;
+        }
+        synchronized (idle) {
+            idle.computeIfAbsent(key, k -> new ArrayDeque<>()).offerFirst(transport);
+        }
+    }
+
+    private PooledTransport connect(final Session session) throws MessagingException {
+        final Transport transport = session.getTransport("smtp");
+        transport.connect();
+        return new PooledTransport(transport);
+    }
+
+    private static void close(final PooledTransport transport) {
+        try {
+            transport.transport.close();
+        } catch (final MessagingException e) {
+            // connection is dropped anyway
+        }
+    }
+
+    /**
+     * server and user in clear text, the password and all session properties as hash,
+     * so a connection opened with other credentials or security settings is never reused
+     */
+    private static String key(final Session session) {
+        final String host = session.getProperty("mail.smtp.host");
+        final String port = session.getProperty("mail.smtp.port");
+        final String user = session.getProperty("mail.smtp.user");
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final Properties properties = session.getProperties();
+            for (final String name : new TreeSet<>(properties.stringPropertyNames())) {
+                digest.update((name + "=" + properties.getProperty(name) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            final PasswordAuthentication authentication = session.requestPasswordAuthentication(null,
+                port == null ? -1 : Integer.parseInt(port), "smtp", null, user);
+            if (authentication != null) {
+                digest.update((byte) 0);
+                digest.update(authentication.getPassword().getBytes(StandardCharsets.UTF_8));
+            }
+            return host + ":" + port + ":" + user + ":" + Base64.getEncoder().encodeToString(digest.digest());
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private long lastUsed = System.currentTimeMillis();
+        private int messages;
+
+        PooledTransport(final Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
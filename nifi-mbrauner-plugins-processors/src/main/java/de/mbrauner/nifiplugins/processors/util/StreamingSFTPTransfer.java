@@ -0,0 +1,286 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import de.mbrauner.nifiplugins.services.PooledSSHSession;
+import de.mbrauner.nifiplugins.services.SSHSessionPool;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+import org.apache.nifi.context.PropertyContext;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processors.standard.util.SFTPTransfer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SFTPTransfer} with direct access to the remote file stream, e.g. to continue an upload at a given offset.
+ * With a {@link SSHSessionPool} the SFTP client is borrowed from the pool and returned on {@link #close()}.
+ */
+public class StreamingSFTPTransfer extends SFTPTransfer {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_UNCONFIRMED_WRITES = 16;
+
+    private final PropertyContext propertyContext;
+    private final ComponentLog logger;
+    private final SSHSessionPool sessionPool;
+    private PooledSSHSession pooledSession;
+
+    public StreamingSFTPTransfer(final PropertyContext propertyContext, final ComponentLog logger) {
+        this(propertyContext, logger, null);
+    }
+
+    /**
+     * @param sessionPool sessions are borrowed from, null to connect on its own like {@link SFTPTransfer}
+     */
+    public StreamingSFTPTransfer(final PropertyContext propertyContext, final ComponentLog logger, final SSHSessionPool sessionPool) {
+        super(propertyContext, logger);
+        this.propertyContext = propertyContext;
+        this.logger = logger;
+        this.sessionPool = sessionPool;
+    }
+
+    @Override
+    protected SFTPClient getSFTPClient(final FlowFile flowFile) throws IOException {
+        if (sessionPool == null) {
+            return super.getSFTPClient(flowFile);
+        }
+        final String hostname = propertyContext.getProperty(HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+        if (pooledSession != null) {
+            if (pooledSession.getRemoteHostname().equals(hostname)) {
+                return pooledSession.getSFTPClient();
+            }
+            releaseSession();
+        }
+        pooledSession = sessionPool.borrow(hostname,
+                propertyContext.getProperty(PORT).evaluateAttributeExpressions(flowFile).asInteger(),
+                propertyContext.getProperty(USERNAME).evaluateAttributeExpressions(flowFile).getValue(),
+                propertyContext.getProperty(PASSWORD).evaluateAttributeExpressions(flowFile).getValue());
+        return pooledSession.getSFTPClient();
+    }
+
+    @Override
+    public String getHomeDirectory(final FlowFile flowFile) throws IOException {
+        if (sessionPool == null) {
+            return super.getHomeDirectory(flowFile);
+        }
+        // borrow and connect errors are thrown, only an unresolvable home directory is tolerated like SFTPTransfer does
+        final SFTPClient sftpClient = getSFTPClient(flowFile);
+        try {
+            return sftpClient.canonicalize("");
+        } catch (final IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * the borrowed session is disconnected on {@link #close()} instead of being returned to the pool
+     */
+    public void invalidateSession() {
+        if (pooledSession != null) {
+            pooledSession.invalidate();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseSession();
+        super.close();
+    }
+
+    private void releaseSession() {
+        if (pooledSession != null) {
+            pooledSession.close();
+            pooledSession = null;
+        }
+    }
+
+    /**
+     * @return size of the remote file in bytes or -1 if the file does not exist
+     */
+    public long getRemoteFileSize(final FlowFile flowFile, final String path, final String filename) throws IOException {
+        final String fullPath = buildRemotePath(path, filename);
+        try {
+            final FileAttributes attributes = getSFTPClient(flowFile).statExistence(fullPath);
+            return attributes == null ? -1L : attributes.getSize();
+        } catch (final IOException e) {
+            throw new IOException("Unable to get size of " + fullPath + " due to " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * writes the content to the remote file starting at the given offset, the file is created (or truncated) if offset is 0
+     *
+     * @param position updated with every written chunk, the value is optimistic as writes are confirmed asynchronously
+     * @return full path of the remote file
+     */
+    public String putStream(final FlowFile flowFile, final String path, final String filename, final long offset,
+                            final InputStream content, final AtomicLong position) throws IOException {
+        return putStream(flowFile, path, filename, offset, content, position, CompressionFormat.NONE);
+    }
+
+    /**
+     * like {@link #putStream(FlowFile, String, String, long, InputStream, AtomicLong)} but the content is compressed while it is written,
+     * the position counts the compressed bytes
+     */
+    public String putStream(final FlowFile flowFile, final String path, final String filename, final long offset,
+                            final InputStream content, final AtomicLong position, final CompressionFormat compression) throws IOException {
+        final String fullPath = buildRemotePath(path, filename);
+        try (final OutputStream out = openStream(flowFile, path, filename, offset, position, compression)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (final IOException e) {
+            throw new IOException("Unable to put content to " + fullPath + " at offset " + offset + " due to " + e.getMessage(), e);
+        }
+        return fullPath;
+    }
+
+    /**
+     * opens the remote file for writing at the given offset, the file is created (or truncated) if offset is 0.
+     * Closing the returned stream closes the remote file.
+     *
+     * @param position updated with every written chunk of (compressed) bytes
+     */
+    public OutputStream openStream(final FlowFile flowFile, final String path, final String filename, final long offset,
+                                   final AtomicLong position, final CompressionFormat compression) throws IOException {
+        final String fullPath = buildRemotePath(path, filename);
+        final Set<OpenMode> openModes = offset > 0
+                ? EnumSet.of(OpenMode.WRITE)
+                : EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC);
+        position.set(offset);
+
+        final RemoteFile remoteFile = getSFTPClient(flowFile).open(fullPath, openModes);
+        try {
+            return compression.encode(new RemoteOutputStream(remoteFile, offset, position));
+        } catch (final IOException e) {
+            remoteFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * sets Last Modified Time, Permissions, Remote Owner and Remote Group of the remote file like {@link SFTPTransfer#put(FlowFile, String, String, InputStream)}
+     * does after the upload, a failure is logged and does not fail the transfer
+     */
+    public void applyRemoteAttributes(final FlowFile flowFile, final String fullPath) throws IOException {
+        final SFTPClient sftpClient = getSFTPClient(flowFile);
+
+        final String lastModifiedTime = propertyContext.getProperty(LAST_MODIFIED_TIME).evaluateAttributeExpressions(flowFile).getValue();
+        if (lastModifiedTime != null && !lastModifiedTime.trim().isEmpty()) {
+            try {
+                final DateFormat formatter = new SimpleDateFormat(FILE_MODIFY_DATE_ATTR_FORMAT, Locale.US);
+                final Date fileModifyTime = formatter.parse(lastModifiedTime);
+                final FileAttributes remoteAttributes = sftpClient.stat(fullPath);
+                sftpClient.setattr(fullPath, new FileAttributes.Builder()
+                        .withAtimeMtime(remoteAttributes.getAtime(), fileModifyTime.getTime() / 1000L)
+                        .build());
+            } catch (final Exception e) {
+                logger.error("Failed to set lastModifiedTime on {} to {} due to {}", new Object[]{fullPath, lastModifiedTime, e});
+            }
+        }
+
+        final String permissions = propertyContext.getProperty(PERMISSIONS).evaluateAttributeExpressions(flowFile).getValue();
+        if (permissions != null && !permissions.trim().isEmpty()) {
+            try {
+                final int perms = parsePermissions(permissions.trim());
+                if (perms >= 0) {
+                    sftpClient.chmod(fullPath, perms);
+                }
+            } catch (final Exception e) {
+                logger.error("Failed to set permission on {} to {} due to {}", new Object[]{fullPath, permissions, e});
+            }
+        }
+
+        final String owner = propertyContext.getProperty(REMOTE_OWNER).evaluateAttributeExpressions(flowFile).getValue();
+        if (owner != null && !owner.trim().isEmpty()) {
+            try {
+                sftpClient.chown(fullPath, Integer.parseInt(owner.trim()));
+            } catch (final Exception e) {
+                logger.error("Failed to set owner on {} to {} due to {}", new Object[]{fullPath, owner, e});
+            }
+        }
+
+        final String group = propertyContext.getProperty(REMOTE_GROUP).evaluateAttributeExpressions(flowFile).getValue();
+        if (group != null && !group.trim().isEmpty()) {
+            try {
+                sftpClient.chgrp(fullPath, Integer.parseInt(group.trim()));
+            } catch (final Exception e) {
+                logger.error("Failed to set group on {} to {} due to {}", new Object[]{fullPath, group, e});
+            }
+        }
+    }
+
+    /**
+     * @param permissions octal like 644 or symbolic like rw-r--r--
+     * @return permission bits or -1 if the value is not valid
+     */
+    static int parsePermissions(final String permissions) {
+        if (permissions.matches("[0-7]{3,4}")) {
+            return Integer.parseInt(permissions, 8);
+        }
+        if (!permissions.matches("[r-][w-][x-][r-][w-][x-][r-][w-][x-]")) {
+            return -1;
+        }
+        int perms = 0;
+        for (int i = 0; i < 9; i++) {
+            if (permissions.charAt(i) != '-') {
+                perms |= 1 << (8 - i);
+            }
+        }
+        return perms;
+    }
+
+    public static String buildRemotePath(final String path, final String filename) {
+        if (path == null || path.isEmpty()) {
+            return filename;
+        }
+        return path.endsWith("/") ? path + filename : path + "/" + filename;
+    }
+
+    private static class RemoteOutputStream extends FilterOutputStream {
+
+        private final RemoteFile remoteFile;
+        private final AtomicLong position;
+
+        RemoteOutputStream(final RemoteFile remoteFile, final long offset, final AtomicLong position) {
+            super(remoteFile.new RemoteFileOutputStream(offset, MAX_UNCONFIRMED_WRITES));
+            this.remoteFile = remoteFile;
+            this.position = position;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            position.incrementAndGet();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            position.addAndGet(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                remoteFile.close();
+            }
+        }
+    }
+}
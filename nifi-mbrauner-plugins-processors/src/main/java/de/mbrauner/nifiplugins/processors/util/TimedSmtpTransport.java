@@ -0,0 +1,80 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import com.sun.mail.smtp.SMTPTransport;
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.NoSuchProviderException;
+import jakarta.mail.Provider;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SMTP transport which records the connect, authentication and data phases in the {@link SmtpStatistics} of its mail session.
+ * The connect phase ends with the last EHLO (after STARTTLS if used), the authentication follows within {@link #protocolConnect}.
+ */
+public class TimedSmtpTransport extends SMTPTransport {
+
+    private static final String STATISTICS_PROPERTY = TimedSmtpTransport.class.getName() + ".statistics";
+
+    private static final Provider PROVIDER = new Provider(Provider.Type.TRANSPORT, "smtp", TimedSmtpTransport.class.getName(), "mbrauner", "1");
+
+    private long greeted;
+
+    public TimedSmtpTransport(final Session session, final URLName urlname) {
+        super(session, urlname);
+    }
+
+    /**
+     * lets every SMTP transport of the session record to the statistics, including the one of {@link jakarta.mail.Transport#send(Message)}
+     */
+    public static void instrument(final Session session, final SmtpStatistics statistics) {
+        session.getProperties().put(STATISTICS_PROPERTY, statistics);
+        try {
+            session.setProvider(PROVIDER);
+        } catch (final NoSuchProviderException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(final String host, final int port, final String user, final String passwd) throws MessagingException {
+        final long start = System.nanoTime();
+        greeted = 0;
+        final boolean connected = super.protocolConnect(host, port, user, passwd);
+        final SmtpStatistics statistics = statistics();
+        if (connected && statistics != null) {
+            final long end = System.nanoTime();
+            if (greeted == 0 || user == null || passwd == null) {
+                statistics.recordConnect(TimeUnit.NANOSECONDS.toMillis(end - start));
+            } else {
+                statistics.recordConnect(TimeUnit.NANOSECONDS.toMillis(greeted - start));
+                statistics.recordAuth(TimeUnit.NANOSECONDS.toMillis(end - greeted));
+            }
+        }
+        return connected;
+    }
+
+    @Override
+    protected boolean ehlo(final String domain) throws MessagingException {
+        final boolean ehlo = super.ehlo(domain);
+        greeted = System.nanoTime();
+        return ehlo;
+    }
+
+    @Override
+    public synchronized void sendMessage(final Message message, final Address[] addresses) throws MessagingException {
+        final long start = System.nanoTime();
+        super.sendMessage(message, addresses);
+        final SmtpStatistics statistics = statistics();
+        if (statistics != null) {
+            statistics.recordData(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private SmtpStatistics statistics() {
+        return (SmtpStatistics) session.getProperties().get(STATISTICS_PROPERTY);
+    }
+}
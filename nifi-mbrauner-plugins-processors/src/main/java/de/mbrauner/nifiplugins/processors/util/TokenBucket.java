@@ -0,0 +1,67 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+/**
+ * token bucket which refills continuously with the given rate up to a capacity of one second of tokens
+ */
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private double capacity;
+    private double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond tokens added per second, also the burst size (at least one token)
+     */
+    public TokenBucket(final double ratePerSecond) {
+        setRate(ratePerSecond);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * changes the rate, the tokens already in the bucket are kept up to the new capacity
+     */
+    public synchronized void setRate(final double ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("rate must be positive but was " + ratePerSecond);
+        }
+        if (lastRefill != 0) {
+            refill();
+        }
+        this.capacity = Math.max(1d, ratePerSecond);
+        this.tokensPerNano = ratePerSecond / NANOS_PER_SECOND;
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    public synchronized double getRate() {
+        return tokensPerNano * NANOS_PER_SECOND;
+    }
+
+    /**
+     * @return true if a token was taken
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1d) {
+            return false;
+        }
+        tokens -= 1d;
+        return true;
+    }
+
+    /**
+     * gives back a token which was taken but not used
+     */
+    public synchronized void release() {
+        tokens = Math.min(capacity, tokens + 1d);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
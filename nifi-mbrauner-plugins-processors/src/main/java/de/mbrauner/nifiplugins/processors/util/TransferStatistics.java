@@ -0,0 +1,43 @@
+package de.mbrauner.nifiplugins.processors.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * in memory latency and throughput histograms per remote host
+ */
+public class TransferStatistics {
+
+    private final ConcurrentMap<String, HostStatistics> hosts = new ConcurrentHashMap<>();
+
+    public void record(final String host, final long bytes, final long millis) {
+        final HostStatistics statistics = hosts.computeIfAbsent(host, h -> new HostStatistics());
+        statistics.latencyMillis.record(millis);
+        statistics.bytesPerSecond.record(bytesPerSecond(bytes, millis));
+    }
+
+    /**
+     * @return readable summary per host, sorted by host
+     */
+    public Map<String, String> summary() {
+        final Map<String, String> summary = new TreeMap<>();
+        hosts.forEach((host, statistics) -> summary.put(host,
+                "latency millis [" + statistics.latencyMillis + "], throughput bytes/s [" + statistics.bytesPerSecond + "]"));
+        return summary;
+    }
+
+    public void clear() {
+        hosts.clear();
+    }
+
+    public static long bytesPerSecond(final long bytes, final long millis) {
+        return millis <= 0 ? bytes * 1000 : bytes * 1000 / millis;
+    }
+
+    private static class HostStatistics {
+        private final Histogram latencyMillis = new Histogram();
+        private final Histogram bytesPerSecond = new Histogram();
+    }
+}
@@ -0,0 +1,76 @@
+package de.mbrauner.nifiplugins.services;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+import java.io.Closeable;
+
+/**
+ * authenticated SSH session with an open SFTP channel borrowed from a {@link SSHSessionPool},
+ * {@link #close()} returns the session to the pool unless it was invalidated
+ */
+public class PooledSSHSession implements Closeable {
+
+    private final StandardSSHSessionPool.HostPool pool;
+    private final String key;
+    private final SSHClient ssh;
+    private final SFTPClient sftp;
+    private long lastUsed;
+    private boolean valid = true;
+    private boolean borrowed;
+
+    PooledSSHSession(final StandardSSHSessionPool.HostPool pool, final String key, final SSHClient ssh, final SFTPClient sftp) {
+        this.pool = pool;
+        this.key = key;
+        this.ssh = ssh;
+        this.sftp = sftp;
+    }
+
+    public SFTPClient getSFTPClient() {
+        return sftp;
+    }
+
+    public String getRemoteHostname() {
+        return ssh.getRemoteHostname();
+    }
+
+    /**
+     * the session is disconnected on {@link #close()} instead of being returned, e.g. after an i/o error
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    SSHClient getSSHClient() {
+        return ssh;
+    }
+
+    boolean isUsable() {
+        return valid && ssh.isConnected() && ssh.isAuthenticated() && sftp.getSFTPEngine().getSubsystem().isOpen();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void setLastUsed(final long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+
+    boolean isBorrowed() {
+        return borrowed;
+    }
+
+    void setBorrowed(final boolean borrowed) {
+        this.borrowed = borrowed;
+    }
+}
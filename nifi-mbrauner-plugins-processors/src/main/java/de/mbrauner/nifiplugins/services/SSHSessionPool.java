@@ -0,0 +1,21 @@
+package de.mbrauner.nifiplugins.services;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+import java.io.IOException;
+
+@Tags({"ssh", "sftp", "pool", "session"})
+@CapabilityDescription("Provides authenticated SSH sessions with an open SFTP channel which are shared by all processors referencing the service. "
+        + "The number of sessions per remote host is bounded.")
+public interface SSHSessionPool extends ControllerService {
+
+    /**
+     * borrows an idle session for host, port and credentials or opens a new one, waits while the host has no free session.
+     * The session has to be closed to return it to the pool.
+     *
+     * @throws IOException if no session could be opened or the borrow timeout elapsed
+     */
+    PooledSSHSession borrow(String hostname, int port, String username, String password) throws IOException;
+}
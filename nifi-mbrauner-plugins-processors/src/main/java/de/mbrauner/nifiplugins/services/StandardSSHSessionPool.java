@@ -0,0 +1,347 @@
+package de.mbrauner.nifiplugins.services;
+
+import de.mbrauner.nifiplugins.processors.util.CachedKnownHostsVerifier;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.transport.verification.HostKeyVerifier;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"ssh", "sftp", "pool", "session"})
+@CapabilityDescription("Keeps a bounded pool of authenticated SSH sessions per remote host and port which is shared by all referencing processors. "
+        + "Idle sessions are reused by processors with the same username and password and closed after the idle timeout. "
+        + "If a host has no free session, a processor waits up to the borrow timeout, which keeps the number of connections "
+        + "below the MaxStartups and MaxSessions limits of the server. "
+        + "Host keys are verified against the known hosts file of the pool, without one every host key is accepted. "
+        + "Sessions use the timeouts of the pool and the default SSH transport, proxy, compression and cipher settings of processors do not apply.")
+public class StandardSSHSessionPool extends AbstractControllerService implements SSHSessionPool {
+
+    public static final PropertyDescriptor MAX_SESSIONS_PER_HOST = new PropertyDescriptor.Builder()
+            .name("Max Sessions per Host")
+            .description("Maximum number of open SSH sessions to one host and port, borrowed and idle")
+            .defaultValue("4")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BORROW_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Borrow Timeout")
+            .description("Maximum time to wait for a free session of a host before the borrowing processor fails")
+            .defaultValue("30 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Idle Timeout")
+            .description("Time after which an unused session is disconnected")
+            .defaultValue("1 min")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONNECTION_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Connection Timeout")
+            .description("Maximum time to establish a connection")
+            .defaultValue("10 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DATA_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Data Timeout")
+            .description("Maximum time to wait for data from the server")
+            .defaultValue("30 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor KNOWN_HOSTS_FILE = new PropertyDescriptor.Builder()
+            .name("Known Hosts File")
+            .description("OpenSSH known hosts file the host keys of all sessions are verified against, "
+                    + "the file is parsed again after it was modified. If not set, every host key is accepted.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    private static final List<PropertyDescriptor> PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            MAX_SESSIONS_PER_HOST, BORROW_TIMEOUT, IDLE_TIMEOUT, CONNECTION_TIMEOUT, DATA_TIMEOUT, KNOWN_HOSTS_FILE));
+
+    private static final HostKeyVerifier ACCEPT_ALL_HOST_KEYS = new PromiscuousVerifier();
+
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled;
+    private volatile int maxSessionsPerHost;
+    private volatile long borrowTimeoutMillis;
+    private volatile long idleTimeoutMillis;
+    private volatile int connectionTimeoutMillis;
+    private volatile int dataTimeoutMillis;
+    private volatile HostKeyVerifier hostKeyVerifier = ACCEPT_ALL_HOST_KEYS;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        maxSessionsPerHost = context.getProperty(MAX_SESSIONS_PER_HOST).asInteger();
+        borrowTimeoutMillis = context.getProperty(BORROW_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        idleTimeoutMillis = context.getProperty(IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        connectionTimeoutMillis = context.getProperty(CONNECTION_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue();
+        dataTimeoutMillis = context.getProperty(DATA_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue();
+        if (context.getProperty(KNOWN_HOSTS_FILE).isSet()) {
+            try {
+                hostKeyVerifier = new CachedKnownHostsVerifier(Paths.get(context.getProperty(KNOWN_HOSTS_FILE).getValue()));
+            } catch (IOException e) {
+                throw new InitializationException("Unable to read known hosts file due to " + e.getMessage(), e);
+            }
+        } else {
+            hostKeyVerifier = ACCEPT_ALL_HOST_KEYS;
+        }
+        enabled = true;
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        enabled = false;
+        pools.values().forEach(HostPool::closeIdle);
+        pools.clear();
+    }
+
+    @Override
+    public PooledSSHSession borrow(final String hostname, final int port, final String username, final String password) throws IOException {
+        if (!enabled) {
+            throw new IOException("SSH session pool is disabled");
+        }
+        return pools.computeIfAbsent(hostname + ":" + port, k -> new HostPool(hostname, port)).borrow(username, password == null ? "" : password);
+    }
+
+    /**
+     * @return number of open sessions of all hosts, borrowed and idle
+     */
+    public int getOpenSessions() {
+        return pools.values().stream().mapToInt(HostPool::getOpen).sum();
+    }
+
+    /**
+     * sessions of one host and port, idle sessions are kept per credentials, the most recently used first
+     */
+    class HostPool {
+
+        private final String hostname;
+        private final int port;
+        private final Map<String, Deque<PooledSSHSession>> idle = new HashMap<>();
+        private int open;
+
+        HostPool(final String hostname, final int port) {
+            this.hostname = hostname;
+            this.port = port;
+        }
+
+        PooledSSHSession borrow(final String username, final String password) throws IOException {
+            final String key = credentialKey(username, password);
+            final long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+            final List<PooledSSHSession> evicted = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    while (true) {
+                        evictIdle(evicted);
+                        final Deque<PooledSSHSession> sessions = idle.get(key);
+                        if (sessions != null) {
+                            final PooledSSHSession session = sessions.pop();
+                            if (sessions.isEmpty()) {
+                                idle.remove(key);
+                            }
+                            session.setBorrowed(true);
+                            return session;
+                        }
+                        if (open < maxSessionsPerHost) {
+                            open++;
+                            break;
+                        }
+                        if (evictOldestIdle(evicted)) {
+                            continue;
+                        }
+                        final long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new IOException("No SSH session to " + hostname + ":" + port + " available within " + borrowTimeoutMillis
+                                    + " ms, " + open + " sessions are open");
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for an SSH session to " + hostname + ":" + port);
+                        }
+                    }
+                }
+            } finally {
+                evicted.forEach(this::disconnect);
+            }
+
+            try {
+                final PooledSSHSession session = connect(key, username, password);
+                session.setBorrowed(true);
+                return session;
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    open--;
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+
+        void release(final PooledSSHSession session) {
+            final boolean reuse;
+            synchronized (this) {
+                if (!session.isBorrowed()) {
+                    return;
+                }
+                session.setBorrowed(false);
+                reuse = enabled && session.isUsable();
+                if (reuse) {
+                    session.setLastUsed(System.currentTimeMillis());
+                    idle.computeIfAbsent(session.getKey(), k -> new ArrayDeque<>()).push(session);
+                } else {
+                    open--;
+                }
+                notifyAll();
+            }
+            if (!reuse) {
+                disconnect(session);
+            }
+        }
+
+        void closeIdle() {
+            final List<PooledSSHSession> closed = new ArrayList<>();
+            synchronized (this) {
+                idle.values().forEach(closed::addAll);
+                idle.clear();
+                open -= closed.size();
+                notifyAll();
+            }
+            closed.forEach(this::disconnect);
+        }
+
+        synchronized int getOpen() {
+            return open;
+        }
+
+        private void evictIdle(final List<PooledSSHSession> evicted) {
+            final long expired = System.currentTimeMillis() - idleTimeoutMillis;
+            for (final Iterator<Deque<PooledSSHSession>> sessions = idle.values().iterator(); sessions.hasNext(); ) {
+                final Deque<PooledSSHSession> deque = sessions.next();
+                deque.removeIf(session -> {
+                    if (session.getLastUsed() < expired || !session.isUsable()) {
+                        evicted.add(session);
+                        open--;
+                        return true;
+                    }
+                    return false;
+                });
+                if (deque.isEmpty()) {
+                    sessions.remove();
+                }
+            }
+        }
+
+        /**
+         * closes the least recently used idle session of other credentials to make room for a new one
+         */
+        private boolean evictOldestIdle(final List<PooledSSHSession> evicted) {
+            Deque<PooledSSHSession> oldestDeque = null;
+            for (final Deque<PooledSSHSession> deque : idle.values()) {
+                if (oldestDeque == null || deque.peekLast().getLastUsed() < oldestDeque.peekLast().getLastUsed()) {
+                    oldestDeque = deque;
+                }
+            }
+            if (oldestDeque == null) {
+                return false;
+            }
+            final PooledSSHSession oldest = oldestDeque.removeLast();
+            if (oldestDeque.isEmpty()) {
+                idle.remove(oldest.getKey());
+            }
+            evicted.add(oldest);
+            open--;
+            return true;
+        }
+
+        private PooledSSHSession connect(final String key, final String username, final String password) throws IOException {
+            final SSHClient ssh = new SSHClient();
+            ssh.setConnectTimeout(connectionTimeoutMillis);
+            ssh.setTimeout(dataTimeoutMillis);
+            ssh.addHostKeyVerifier(hostKeyVerifier);
+            try {
+                ssh.connect(hostname, port);
+                ssh.authPassword(username, password);
+                final SFTPClient sftp = ssh.newSFTPClient();
+                getLogger().debug("Opened SSH session to {}:{}", new Object[]{hostname, port});
+                return new PooledSSHSession(this, key, ssh, sftp);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    ssh.disconnect();
+                } catch (IOException ignored) {
+                    // connection failed anyway
+                }
+                throw e;
+            }
+        }
+
+        private void disconnect(final PooledSSHSession session) {
+            try {
+                session.getSFTPClient().close();
+            } catch (IOException e) {
+                getLogger().debug("Unable to close SFTP channel to {}:{} due to {}", new Object[]{hostname, port, e.getMessage()});
+            }
+            try {
+                session.getSSHClient().disconnect();
+            } catch (IOException e) {
+                getLogger().debug("Unable to disconnect SSH session to {}:{} due to {}", new Object[]{hostname, port, e.getMessage()});
+            }
+        }
+    }
+
+    private static String credentialKey(final String username, final String password) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(username.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
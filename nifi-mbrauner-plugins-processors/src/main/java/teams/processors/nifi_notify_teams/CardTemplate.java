@@ -0,0 +1,99 @@
+package teams.processors.nifi_notify_teams;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.flowfile.FlowFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * json card with expression language placeholders, split once into literal parts and slots.
+ * The value of a slot is json string escaped, so placeholders belong into json strings.
+ */
+class CardTemplate {
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * literal parts, one more than slots: literal, slot, literal, ..., literal
+     */
+    private final List<String> literals;
+    private final List<PropertyValue> slots;
+
+    private CardTemplate(final List<String> literals, final List<PropertyValue> slots) {
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    /**
+     * @param slotCompiler creates the property value of a placeholder, e.g. {@code context::newPropertyValue}
+     */
+    static CardTemplate compile(final String template, final Function<String, PropertyValue> slotCompiler) {
+        final List<String> literals = new ArrayList<>();
+        final List<PropertyValue> slots = new ArrayList<>();
+        split(template, literals, slots, slotCompiler);
+        return new CardTemplate(Collections.unmodifiableList(literals), Collections.unmodifiableList(slots));
+    }
+
+    /**
+     * @return null if the template is valid json when every placeholder is replaced, otherwise the reason
+     */
+    static String validate(final String template) {
+        final List<String> literals = new ArrayList<>();
+        split(template, literals, new ArrayList<>(), expression -> null);
+        try {
+            GSON.getAdapter(JsonElement.class).fromJson(String.join("0", literals));
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return "not a valid json card: " + e.getMessage();
+        }
+    }
+
+    String render(final FlowFile flowFile) {
+        final StringBuilder json = new StringBuilder(literals.get(0));
+        for (int i = 0; i < slots.size(); i++) {
+            escape(slots.get(i).evaluateAttributeExpressions(flowFile).getValue(), json);
+            json.append(literals.get(i + 1));
+        }
+        return json.toString();
+    }
+
+    private static void split(final String template, final List<String> literals, final List<PropertyValue> slots,
+                              final Function<String, PropertyValue> slotCompiler) {
+        int literalStart = 0;
+        int start = template.indexOf("${");
+        while (start >= 0) {
+            int depth = 0;
+            int end = -1;
+            for (int i = start + 1; i < template.length() && end < 0; i++) {
+                final char c = template.charAt(i);
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}' && --depth == 0) {
+                    end = i;
+                }
+            }
+            if (end < 0) {
+                break;
+            }
+            literals.add(template.substring(literalStart, start));
+            slots.add(slotCompiler.apply(template.substring(start, end + 1)));
+            literalStart = end + 1;
+            start = template.indexOf("${", literalStart);
+        }
+        literals.add(template.substring(literalStart));
+    }
+
+    private static void escape(final String value, final StringBuilder json) {
+        if (value == null) {
+            return;
+        }
+        final String quoted = GSON.toJson(value);
+        json.append(quoted, 1, quoted.length() - 1);
+    }
+}
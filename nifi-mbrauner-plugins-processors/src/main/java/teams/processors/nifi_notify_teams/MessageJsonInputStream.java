@@ -0,0 +1,152 @@
+package teams.processors.nifi_notify_teams;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * json of a {@link Message} whose text is read from a stream and escaped while the json is read,
+ * the text is truncated after the maximum length
+ */
+class MessageJsonInputStream extends InputStream {
+
+    static final String TRUNCATION_MARKER = "\n\n[truncated]";
+
+    private static final Gson GSON = new Gson();
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final byte[] SUFFIX = "\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final InputStream content;
+    private final Reader reader;
+    private final char[] chars = new char[CHUNK_SIZE + 1];
+    private long remaining;
+
+    private byte[] buffer;
+    private int position;
+    private State state = State.PREFIX;
+
+    private enum State { PREFIX, TEXT, SUFFIX, DONE }
+
+    /**
+     * @param content       UTF-8 text of the message, closed with this stream
+     * @param maxTextLength maximum number of chars of the text
+     */
+    MessageJsonInputStream(final String title, final InputStream content, final long maxTextLength) {
+        this.content = content;
+        this.reader = new InputStreamReader(content, StandardCharsets.UTF_8);
+        this.remaining = maxTextLength;
+        this.buffer = ("{\"title\":" + GSON.toJson(title) + ",\"text\":\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, buffer.length - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        state = State.DONE;
+        content.close();
+    }
+
+    /**
+     * @return false at the end of the json
+     */
+    private boolean fill() throws IOException {
+        while (buffer == null || position >= buffer.length) {
+            position = 0;
+            buffer = null;
+            switch (state) {
+                case PREFIX:
+                    state = State.TEXT;
+                    break;
+                case TEXT:
+                    buffer = nextText();
+                    break;
+                case SUFFIX:
+                    buffer = SUFFIX;
+                    state = State.DONE;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return next escaped chunk of the text, empty if the text is complete
+     */
+    private byte[] nextText() throws IOException {
+        if (remaining <= 0) {
+            state = State.SUFFIX;
+            return reader.read() == -1 ? new byte[0] : escape(TRUNCATION_MARKER);
+        }
+        int read = reader.read(chars, 0, (int) Math.min(CHUNK_SIZE, remaining));
+        if (read == -1) {
+            state = State.SUFFIX;
+            return new byte[0];
+        }
+        if (Character.isHighSurrogate(chars[read - 1])) {
+            // keep surrogate pairs together
+            final int low = reader.read();
+            if (low != -1) {
+                chars[read++] = (char) low;
+            }
+        }
+        remaining -= read;
+        return escape(new String(chars, 0, read));
+    }
+
+    private static byte[] escape(final String text) {
+        final StringBuilder escaped = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,166 @@
+package teams.processors.nifi_notify_teams;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * append only file of request bodies which could not be delivered, one json string per line.
+ * The offset of the first pending line is kept in a second file, the spool is truncated when it is drained completely.
+ * Rejected bodies and lines which are no json string (e.g. torn by a crash while appending) are appended to a dead letter file of the same format.
+ */
+class MessageSpool {
+
+    static final String SPOOL_FILE = "teams-spool.jsonl";
+    static final String OFFSET_FILE = "teams-spool.offset";
+    static final String DEAD_LETTER_FILE = "teams-dead-letter.jsonl";
+
+    private static final Gson GSON = new Gson();
+
+    private final Path file;
+    private final Path offsetFile;
+    private final Path deadLetterFile;
+    private long offset;
+    private long entries;
+    private int peekedLength = -1;
+
+    MessageSpool(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.file = directory.resolve(SPOOL_FILE);
+        this.offsetFile = directory.resolve(OFFSET_FILE);
+        this.deadLetterFile = directory.resolve(DEAD_LETTER_FILE);
+        if (!Files.exists(file)) {
+            Files.deleteIfExists(offsetFile);
+        } else if (Files.exists(offsetFile)) {
+            offset = Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.UTF_8).trim());
+        }
+        entries = countEntries();
+    }
+
+    synchronized void append(final String body) throws IOException {
+        appendLine(file, body);
+        entries++;
+    }
+
+    /**
+     * @return the oldest pending body or null if the spool is empty, unparseable lines on the way are moved to the dead letter file
+     */
+    synchronized String peek() throws IOException {
+        while (entries > 0) {
+            final String line;
+            try (InputStream in = openAtOffset()) {
+                final byte[] bytes = readLine(in);
+                peekedLength = bytes.length + 1;
+                line = new String(bytes, StandardCharsets.UTF_8);
+            }
+            final String body = parse(line);
+            if (body != null) {
+                return body;
+            }
+            reject(line);
+        }
+        return null;
+    }
+
+    /**
+     * removes the body returned by the last {@link #peek()}
+     */
+    synchronized void remove() throws IOException {
+        if (peekedLength < 0) {
+            throw new IllegalStateException("nothing peeked");
+        }
+        offset += peekedLength;
+        peekedLength = -1;
+        entries--;
+        if (entries == 0) {
+            // a spool file without offset file is read from the start, the other way round the offset would apply to the next spool
+            Files.deleteIfExists(offsetFile);
+            Files.deleteIfExists(file);
+            offset = 0;
+        } else {
+            final Path temp = offsetFile.resolveSibling(OFFSET_FILE + ".tmp");
+            Files.write(temp, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * appends the body returned by the last {@link #peek()} to the dead letter file and removes it
+     */
+    synchronized void reject(final String body) throws IOException {
+        if (peekedLength < 0) {
+            throw new IllegalStateException("nothing peeked");
+        }
+        appendLine(deadLetterFile, body);
+        remove();
+    }
+
+    synchronized boolean isEmpty() {
+        return entries == 0;
+    }
+
+    synchronized long getEntries() {
+        return entries;
+    }
+
+    private long countEntries() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long count = 0;
+        try (InputStream in = openAtOffset()) {
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private InputStream openAtOffset() throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(offset);
+        return new BufferedInputStream(Channels.newInputStream(channel));
+    }
+
+    /**
+     * @return the body of the line, null if the line is no json string
+     */
+    private static String parse(final String line) {
+        try {
+            return GSON.fromJson(line, String.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private static void appendLine(final Path target, final String body) throws IOException {
+        final byte[] line = (GSON.toJson(body) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(line);
+        }
+    }
+
+    private static byte[] readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return line.toByteArray();
+    }
+}
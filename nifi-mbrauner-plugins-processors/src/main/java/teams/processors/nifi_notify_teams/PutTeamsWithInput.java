@@ -20,40 +20,85 @@
 package teams.processors.nifi_notify_teams;
 
 import com.google.gson.Gson;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
+import de.mbrauner.nifiplugins.processors.util.AdaptiveRateLimiter;
+import de.mbrauner.nifiplugins.processors.util.QueueWindow;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.components.ConfigVerificationResult;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.VerifiableProcessor;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Tags({ "teams", "microsoft", "put", "message", "v1.5" })
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @CapabilityDescription("Sends a webhook message to teams, accepts params")
 @ReadsAttributes({ @ReadsAttribute(attribute = "title", description = "the title that the message has to be sent") })
-public class PutTeamsWithInput extends AbstractProcessor {
+@WritesAttributes({ @WritesAttribute(attribute = PutTeamsWithInput.SPOOLED, description = "true if the message was written to the spool to be sent later") })
+public class PutTeamsWithInput extends AbstractSessionFactoryProcessor implements VerifiableProcessor {
+
+    public static final String SPOOLED = "teams.spooled";
+
+    private static final long SPOOL_POLL_MILLIS = 1000;
+    private static final long SPOOL_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
 
     public static final PropertyDescriptor TITLE = new PropertyDescriptor
         .Builder().name("TITLE")
@@ -72,6 +117,125 @@ public class PutTeamsWithInput extends AbstractProcessor {
         .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
         .build();
 
+    public static final PropertyDescriptor MAX_CONNECTIONS = new PropertyDescriptor
+        .Builder().name("MAX_CONNECTIONS")
+        .displayName("Max Connections per Webhook")
+        .description("Maximum number of pooled connections to one webhook host")
+        .required(true)
+        .defaultValue("10")
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor KEEP_ALIVE = new PropertyDescriptor
+        .Builder().name("KEEP_ALIVE")
+        .displayName("Keep-Alive Duration")
+        .description("How long an idle connection is kept open for the next message, shorter if the server says so")
+        .required(true)
+        .defaultValue("30 sec")
+        .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor ASYNC_DELIVERY = new PropertyDescriptor
+        .Builder().name("ASYNC_DELIVERY")
+        .displayName("Asynchronous Delivery")
+        .description("If true, the requests are sent without blocking the task, "
+            + "every flow file is routed and committed in its own session when its response arrives")
+        .required(true)
+        .allowableValues("true", "false")
+        .defaultValue("false")
+        .build();
+
+    public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor
+        .Builder().name("MAX_IN_FLIGHT")
+        .displayName("Max Requests in Flight")
+        .description("Maximum number of requests waiting for their response in asynchronous delivery")
+        .required(true)
+        .defaultValue("50")
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor AGGREGATION_WINDOW = new PropertyDescriptor
+        .Builder().name("AGGREGATION_WINDOW")
+        .displayName("Aggregation Window")
+        .description("If set, flow files with the same title stay queued until the oldest one waited for this time "
+            + "or Aggregation Max Messages is reached, then one combined message is posted. "
+            + "Identical texts are posted once with their count.")
+        .required(false)
+        .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor AGGREGATION_MAX_MESSAGES = new PropertyDescriptor
+        .Builder().name("AGGREGATION_MAX_MESSAGES")
+        .displayName("Aggregation Max Messages")
+        .description("Maximum number of flow files combined into one message")
+        .required(true)
+        .defaultValue("100")
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor AGGREGATION_MAX_SIZE = new PropertyDescriptor
+        .Builder().name("AGGREGATION_MAX_SIZE")
+        .displayName("Aggregation Max Text Size")
+        .description("Maximum size of the text of a combined message, the remaining texts are omitted")
+        .required(true)
+        .defaultValue("20 KB")
+        .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor INITIAL_RATE = new PropertyDescriptor
+        .Builder().name("INITIAL_RATE")
+        .displayName("Initial Rate")
+        .description("Requests per second to a webhook after start. The rate increases while the webhook accepts the requests "
+            + "and is halved when it answers with HTTP 429, flow files which would exceed the rate stay in the queue.")
+        .required(true)
+        .defaultValue("4")
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor MAX_RATE = new PropertyDescriptor
+        .Builder().name("MAX_RATE")
+        .displayName("Max Rate")
+        .description("Maximum requests per second to a webhook")
+        .required(true)
+        .defaultValue("10")
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor MAX_TEXT_LENGTH = new PropertyDescriptor
+        .Builder().name("MAX_TEXT_LENGTH")
+        .displayName("Max Text Length")
+        .description("Maximum number of characters of the text, a longer flow file content is truncated and marked as truncated")
+        .required(true)
+        .defaultValue("20000")
+        .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+        .build();
+
+    public static final PropertyDescriptor CARD_TEMPLATE = new PropertyDescriptor
+        .Builder().name("CARD_TEMPLATE")
+        .displayName("Card Template")
+        .description("If set, this json (e.g. a MessageCard or an adaptive card) is posted instead of title and content. "
+            + "Expression language placeholders are filled with the flow file attributes and json escaped, "
+            + "so they have to be placed inside json strings. The template is compiled once when the processor is scheduled.")
+        .required(false)
+        .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+        .addValidator((subject, input, context) -> {
+            final String reason = CardTemplate.validate(input);
+            return new ValidationResult.Builder().subject(subject).input(input).valid(reason == null).explanation(reason).build();
+        })
+        .build();
+
+    public static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor
+        .Builder().name("SPOOL_DIRECTORY")
+        .displayName("Spool Directory")
+        .description("If set, messages which can not be delivered because the webhook is unreachable, throttled or failing "
+            + "are appended to a spool file in this directory and their flow files are routed to spooled. "
+            + "While the spool is not empty, new messages are appended as well. A background task sends the spooled messages "
+            + "in order with an increasing backoff until the webhook accepts them again. "
+            + "Spooled messages which Teams rejects are moved to the dead letter file " + MessageSpool.DEAD_LETTER_FILE + " in this directory.")
+        .required(false)
+        .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+        .build();
+
     public static final Relationship REL_SUCC = new Relationship.Builder()
         .name("Success")
         .description("Success relation")
@@ -82,15 +246,48 @@ public class PutTeamsWithInput extends AbstractProcessor {
         .description("Failure relation")
         .build();
 
+    public static final Relationship REL_SPOOLED = new Relationship.Builder()
+        .name("Spooled")
+        .description("Flow files whose message was written to the spool to be sent later, only with a Spool Directory")
+        .build();
+
+    private static final Gson GSON = new Gson();
+
     private List<PropertyDescriptor> descriptors;
 
-    private Set<Relationship> relationships;
+    private volatile Set<Relationship> relationships;
+
+    private volatile CloseableHttpClient httpClient;
+
+    private volatile CardTemplate cardTemplate;
+
+    private volatile HttpClient asyncClient;
+    private volatile Semaphore inFlight;
+    private volatile int maxInFlight;
+
+    private final ConcurrentMap<String, AdaptiveRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+    private volatile MessageSpool spool;
+    private volatile ScheduledExecutorService spoolDrainer;
+    private volatile long drainBackoffMillis;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(TITLE);
         descriptors.add(WEBHOOK);
+        descriptors.add(MAX_CONNECTIONS);
+        descriptors.add(KEEP_ALIVE);
+        descriptors.add(ASYNC_DELIVERY);
+        descriptors.add(MAX_IN_FLIGHT);
+        descriptors.add(AGGREGATION_WINDOW);
+        descriptors.add(AGGREGATION_MAX_MESSAGES);
+        descriptors.add(AGGREGATION_MAX_SIZE);
+        descriptors.add(INITIAL_RATE);
+        descriptors.add(MAX_RATE);
+        descriptors.add(MAX_TEXT_LENGTH);
+        descriptors.add(CARD_TEMPLATE);
+        descriptors.add(SPOOL_DIRECTORY);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -104,43 +301,606 @@ public class PutTeamsWithInput extends AbstractProcessor {
         return this.relationships;
     }
 
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        if (SPOOL_DIRECTORY.equals(descriptor)) {
+            final Set<Relationship> relationships = new HashSet<>();
+            relationships.add(REL_SUCC);
+            relationships.add(REL_FAIL);
+            if (newValue != null) {
+                relationships.add(REL_SPOOLED);
+            }
+            this.relationships = Collections.unmodifiableSet(relationships);
+        }
+    }
+
     @Override
     public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (context.getProperty(AGGREGATION_WINDOW).isSet() && context.getProperty(ASYNC_DELIVERY).asBoolean()) {
+            results.add(new ValidationResult.Builder()
+                .subject(AGGREGATION_WINDOW.getDisplayName())
+                .valid(false)
+                .explanation("not supported together with " + ASYNC_DELIVERY.getDisplayName())
+                .build());
+        }
+        if (context.getProperty(AGGREGATION_WINDOW).isSet() && context.getProperty(CARD_TEMPLATE).isSet()) {
+            results.add(new ValidationResult.Builder()
+                .subject(AGGREGATION_WINDOW.getDisplayName())
+                .valid(false)
+                .explanation("aggregated messages are not rendered by " + CARD_TEMPLATE.getDisplayName())
+                .build());
+        }
+        if (context.getProperty(SPOOL_DIRECTORY).isSet() && context.getProperty(ASYNC_DELIVERY).asBoolean()) {
+            results.add(new ValidationResult.Builder()
+                .subject(SPOOL_DIRECTORY.getDisplayName())
+                .valid(false)
+                .explanation("not supported together with " + ASYNC_DELIVERY.getDisplayName())
+                .build());
+        }
+        return results;
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
+        rateLimiters.clear();
+        cardTemplate = context.getProperty(CARD_TEMPLATE).isSet()
+            ? CardTemplate.compile(context.getProperty(CARD_TEMPLATE).getValue(), context::newPropertyValue)
+            : null;
+        final int maxConnections = context.getProperty(MAX_CONNECTIONS).asInteger();
+        final long keepAliveMillis = context.getProperty(KEEP_ALIVE).asTimePeriod(TimeUnit.MILLISECONDS);
+
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setMaxTotal(Math.max(connectionManager.getMaxTotal(), maxConnections));
+        httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy((response, httpContext) -> {
+                final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, httpContext);
+                return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+            .build();
 
+        if (context.getProperty(ASYNC_DELIVERY).asBoolean()) {
+            maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+            inFlight = new Semaphore(maxInFlight);
+            asyncClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        }
+
+        spool = null;
+        if (context.getProperty(SPOOL_DIRECTORY).isSet()) {
+            try {
+                spool = new MessageSpool(Paths.get(context.getProperty(SPOOL_DIRECTORY).getValue()));
+            } catch (IOException e) {
+                throw new ProcessException("Unable to open spool due to " + e.getMessage(), e);
+            }
+            final String webhook = context.getProperty(WEBHOOK).getValue();
+            final AdaptiveRateLimiter limiter = rateLimiter(context);
+            drainBackoffMillis = 0;
+            spoolDrainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "PutTeamsWithInput spool drainer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            spoolDrainer.execute(() -> drain(webhook, limiter));
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        final ScheduledExecutorService drainer = spoolDrainer;
+        spoolDrainer = null;
+        if (drainer != null) {
+            drainer.shutdownNow();
+            try {
+                drainer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final Semaphore inFlight = this.inFlight;
+        if (asyncClient != null && inFlight != null) {
+            try {
+                // let the running requests route their flow files
+                if (inFlight.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS)) {
+                    inFlight.release(maxInFlight);
+                } else {
+                    getLogger().warn("Requests still in flight after 30 seconds, their flow files are rolled back");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        asyncClient = null;
+
+        final CloseableHttpClient client = httpClient;
+        httpClient = null;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to close http client due to {}", new Object[]{e.getMessage()}, e);
+            }
+        }
     }
 
     @Override
+    public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+        if (asyncClient != null) {
+            onTriggerAsync(context, sessionFactory);
+            return;
+        }
+        final ProcessSession session = sessionFactory.createSession();
+        try {
+            onTrigger(context, session);
+            session.commitAsync();
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+    }
+
+    /**
+     * sends the flow files of the queue while requests are allowed in flight,
+     * each flow file has its own session which is committed from the response callback
+     */
+    private void onTriggerAsync(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+        final HttpClient client = asyncClient;
+        final Semaphore inFlight = this.inFlight;
+        final URI webhook = URI.create(context.getProperty(WEBHOOK).getValue());
+        final AdaptiveRateLimiter limiter = rateLimiter(context);
+        while (isScheduled() && inFlight.tryAcquire()) {
+            if (!limiter.tryAcquire()) {
+                inFlight.release();
+                context.yield();
+                return;
+            }
+            final ProcessSession session = sessionFactory.createSession();
+            final FlowFile flowFile = session.get();
+            if (flowFile == null) {
+                session.commitAsync();
+                inFlight.release();
+                return;
+            }
+            // every subscription (e.g. after a redirect) reads the content again, the stream of the previous one is closed
+            final AtomicReference<InputStream> body = new AtomicReference<>();
+            final HttpRequest request;
+            try {
+                request = HttpRequest.newBuilder(webhook)
+                    .header("Content-Type", ContentType.APPLICATION_JSON.toString())
+                    .POST(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                        final InputStream previous = body.getAndSet(openBody(context, session, flowFile));
+                        if (previous != null) {
+                            closeQuietly(previous);
+                        }
+                        return body.get();
+                    }))
+                    .build();
+            } catch (final RuntimeException e) {
+                session.rollback(true);
+                inFlight.release();
+                throw e;
+            }
+
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                try {
+                    final InputStream opened = body.get();
+                    if (opened != null) {
+                        closeQuietly(opened);
+                    }
+                    if (error != null) {
+                        getLogger().error("Unable to send {} to teams due to {}", new Object[]{flowFile, error.getMessage()}, error);
+                        session.transfer(flowFile, REL_FAIL);
+                    } else {
+                        route(session, Collections.singletonList(flowFile), limiter,
+                            new WebhookResponse(response.statusCode(), response.headers().firstValue("Retry-After").orElse(null)), null);
+                    }
+                    session.commitAsync();
+                } catch (final Throwable t) {
+                    getLogger().error("Unable to route {} due to {}", new Object[]{flowFile, t.getMessage()}, t);
+                    session.rollback(true);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the rendered card template or the message of the flow file as json, the content is read while the json is read
+     */
+    private InputStream openBody(final ProcessContext context, final ProcessSession session, final FlowFile flowFile) {
+        final CardTemplate template = cardTemplate;
+        if (template != null) {
+            return new ByteArrayInputStream(template.render(flowFile).getBytes(StandardCharsets.UTF_8));
+        }
+        return new MessageJsonInputStream(context.getProperty(TITLE).evaluateAttributeExpressions(flowFile).getValue(),
+            session.read(flowFile), context.getProperty(MAX_TEXT_LENGTH).asLong());
+    }
+
+    private void closeQuietly(final InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            getLogger().debug("Unable to close content stream due to {}", new Object[]{e.getMessage()});
+        }
+    }
+
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        if (context.getProperty(AGGREGATION_WINDOW).isSet()) {
+            onTriggerAggregated(context, session);
+            return;
+        }
         FlowFile flowFile = session.get();
         if (flowFile == null) {
             return;
         }
-        org.apache.http.client.HttpClient httpClient = HttpClientBuilder.create().build();
-        HttpPost request = new HttpPost(context.getProperty(WEBHOOK).getValue());
+        final List<FlowFile> flowFiles = Collections.singletonList(flowFile);
+        final Body spoolBody = () -> readBody(context, session, flowFile);
+        final MessageSpool spool = this.spool;
+        if (spool != null && !spool.isEmpty()) {
+            // keep the order of the messages
+            spool(session, flowFiles, spoolBody);
+            return;
+        }
+        final AdaptiveRateLimiter limiter = rateLimiter(context);
+        if (!limiter.tryAcquire()) {
+            requeue(context, session, flowFiles);
+            return;
+        }
+        final WebhookResponse response;
+        try (InputStream body = openBody(context, session, flowFile)) {
+            response = post(context, new InputStreamEntity(body, -1, ContentType.APPLICATION_JSON));
+        } catch (IOException e) {
+            getLogger().error("Unable to send {} to teams due to {}", new Object[]{flowFile, e.getMessage()}, e);
+            if (spool != null) {
+                spool(session, flowFiles, spoolBody);
+            } else {
+                session.transfer(flowFile, REL_FAIL);
+            }
+            return;
+        }
+        route(session, flowFiles, limiter, response, spoolBody);
+    }
+
+    private String readBody(final ProcessContext context, final ProcessSession session, final FlowFile flowFile) throws IOException {
+        try (InputStream body = openBody(context, session, flowFile)) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private WebhookResponse post(final ProcessContext context, final HttpEntity entity) throws IOException {
+        return post(context.getProperty(WEBHOOK).getValue(), entity);
+    }
+
+    private WebhookResponse post(final String webhook, final HttpEntity entity) throws IOException {
+        final CloseableHttpClient httpClient = this.httpClient;
+        if (httpClient == null) {
+            throw new IOException("Processor is stopped");
+        }
+        HttpPost request = new HttpPost(webhook);
+        request.setEntity(entity);
+        // consuming the entity returns the connection to the pool
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            final Header retryAfter = response.getFirstHeader("Retry-After");
+            return new WebhookResponse(response.getStatusLine().getStatusCode(), retryAfter == null ? null : retryAfter.getValue());
+        }
+    }
+
+    private AdaptiveRateLimiter rateLimiter(final ProcessContext context) {
+        return rateLimiters.computeIfAbsent(context.getProperty(WEBHOOK).getValue(), webhook -> new AdaptiveRateLimiter(
+            context.getProperty(INITIAL_RATE).asInteger(), context.getProperty(MAX_RATE).asInteger()));
+    }
+
+    /**
+     * flow files exceeding the rate limit go back to the queue without penalty, the processor yields
+     */
+    private void requeue(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles) {
+        session.transfer(flowFiles);
+        session.adjustCounter("Re-queued by rate limit", flowFiles.size(), false);
+        context.yield();
+    }
+
+    /**
+     * routes the flow files of a request by the response status, throttled and retryable flow files are spooled
+     * or penalized and stay in the queue
+     *
+     * @param body of the request for the spool, null if the flow files can not be spooled
+     */
+    private void route(final ProcessSession session, final List<FlowFile> flowFiles, final AdaptiveRateLimiter limiter, final WebhookResponse response,
+                       final Body body) {
+        switch (response.getOutcome()) {
+            case SUCCESS:
+                limiter.onSuccess();
+                session.transfer(flowFiles, REL_SUCC);
+                break;
+            case THROTTLED:
+            case RETRY:
+                limiter.onThrottled(response.getRetryAfterMillis());
+                if (spool != null && body != null) {
+                    getLogger().warn("Teams answered with HTTP {}, {} flow files are spooled", new Object[]{response.getStatus(), flowFiles.size()});
+                    spool(session, flowFiles, body);
+                    break;
+                }
+                for (final FlowFile flowFile : flowFiles) {
+                    session.transfer(session.penalize(flowFile));
+                }
+                session.adjustCounter(response.getOutcome() == WebhookResponse.Outcome.THROTTLED ? "Throttled by webhook" : "Retried after server error",
+                    flowFiles.size(), false);
+                getLogger().warn("Teams answered with HTTP {}, {} flow files are retried, rate lowered to {} per second",
+                    new Object[]{response.getStatus(), flowFiles.size(), limiter.getRate()});
+                break;
+            default:
+                getLogger().error("Teams rejected {} flow files with HTTP {}", new Object[]{flowFiles.size(), response.getStatus()});
+                session.transfer(flowFiles, REL_FAIL);
+        }
+    }
+
+    /**
+     * posts one combined message for every title whose window elapsed or which reached the maximum number of messages,
+     * all other flow files stay in the queue
+     */
+    private void onTriggerAggregated(final ProcessContext context, final ProcessSession session) {
+        final Map<String, List<FlowFile>> aggregates = QueueWindow.pollReady(session, flowFile -> title(context, flowFile),
+            context.getProperty(AGGREGATION_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS), context.getProperty(AGGREGATION_MAX_MESSAGES).asInteger());
+        if (aggregates.isEmpty()) {
+            context.yield();
+            return;
+        }
+        aggregates.forEach((title, flowFiles) -> postAggregate(context, session, title, flowFiles));
+    }
+
+    private static String title(final ProcessContext context, final FlowFile flowFile) {
+        return context.getProperty(TITLE).evaluateAttributeExpressions(flowFile).getValue();
+    }
+
+    private void postAggregate(final ProcessContext context, final ProcessSession session, final String title, final List<FlowFile> flowFiles) {
+        final AdaptiveRateLimiter limiter = rateLimiter(context);
+        if (!limiter.tryAcquire()) {
+            requeue(context, session, flowFiles);
+            return;
+        }
+        final String json;
+        try {
+            final String text = aggregateText(session, flowFiles, context.getProperty(AGGREGATION_MAX_SIZE).asDataSize(DataUnit.B).longValue());
+            json = GSON.toJson(new Message(title, text));
+        } catch (IOException e) {
+            getLogger().error("Unable to read {} aggregated flow files due to {}", new Object[]{flowFiles.size(), e.getMessage()}, e);
+            session.transfer(flowFiles, REL_FAIL);
+            return;
+        }
+        final MessageSpool spool = this.spool;
+        if (spool != null && !spool.isEmpty()) {
+            spool(session, flowFiles, () -> json);
+            return;
+        }
+        final WebhookResponse response;
+        try {
+            response = post(context, new StringEntity(json, ContentType.APPLICATION_JSON));
+        } catch (IOException e) {
+            getLogger().error("Unable to send {} aggregated flow files to teams due to {}", new Object[]{flowFiles.size(), e.getMessage()}, e);
+            if (spool != null) {
+                spool(session, flowFiles, () -> json);
+            } else {
+                session.transfer(flowFiles, REL_FAIL);
+            }
+            return;
+        }
+        if (response.getOutcome() == WebhookResponse.Outcome.SUCCESS) {
+            session.adjustCounter("Messages Aggregated", flowFiles.size(), false);
+        }
+        route(session, flowFiles, limiter, response, () -> json);
+    }
+
+    /**
+     * @return the distinct texts in order of their first occurrence, a repeated text with its count.
+     * Duplicates are detected by the hash of the whole content, only maxSize bytes of all distinct texts are kept in memory.
+     */
+    private static String aggregateText(final ProcessSession session, final List<FlowFile> flowFiles, final long maxSize) throws IOException {
+        final Map<String, byte[]> texts = new LinkedHashMap<>();
+        final Set<String> truncated = new HashSet<>();
+        final Map<String, Integer> counts = new HashMap<>();
+        final byte[] buffer = new byte[8192];
+        long budget = maxSize;
+        for (final FlowFile flowFile : flowFiles) {
+            final MessageDigest digest = sha256();
+            final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+            long size = 0;
+            try (InputStream is = session.read(flowFile)) {
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    final int keep = (int) Math.min(read, budget - kept.size());
+                    if (keep > 0) {
+                        kept.write(buffer, 0, keep);
+                    }
+                    size += read;
+                }
+            }
+            final String hash = hex(digest.digest());
+            if (!texts.containsKey(hash)) {
+                texts.put(hash, kept.toByteArray());
+                if (kept.size() < size) {
+                    truncated.add(hash);
+                }
+                budget -= kept.size();
+            }
+            counts.merge(hash, 1, Integer::sum);
+        }
+
+        final StringBuilder text = new StringBuilder();
+        long size = 0;
+        int omitted = 0;
+        for (final Map.Entry<String, byte[]> entry : texts.entrySet()) {
+            final int count = counts.get(entry.getKey());
+            final byte[] content = entry.getValue();
+            final String value = new String(content, 0, completeLength(content, content.length), StandardCharsets.UTF_8);
+            final byte[] part = (count > 1 ? value + " (" + count + "x)" : value).getBytes(StandardCharsets.UTF_8);
+            if (size > 0 && (truncated.contains(entry.getKey()) || size + part.length + 2 > maxSize)) {
+                omitted += count;
+                continue;
+            }
+            if (size > 0) {
+                text.append("\n\n");
+                size += 2;
+            }
+            final int length = completeLength(part, (int) Math.min(part.length, maxSize));
+            text.append(new String(part, 0, length, StandardCharsets.UTF_8));
+            size += length;
+        }
+        if (omitted > 0) {
+            text.append("\n\n[").append(omitted).append(" more messages omitted]");
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return length without a character which is cut off at the end
+     */
+    private static int completeLength(final byte[] utf8, final int length) {
+        int start = length - 1;
+        while (start > 0 && start > length - 4 && (utf8[start] & 0xC0) == 0x80) {
+            start--;
+        }
+        if (start < 0) {
+            return length;
+        }
+        final int lead = utf8[start] & 0xFF;
+        final int bytes = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        return start + bytes > length ? start : length;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(final byte[] hash) {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * appends the request body to the spool and routes the flow files to spooled
+     */
+    private void spool(final ProcessSession session, final List<FlowFile> flowFiles, final Body body) {
         try {
-            Message message=new Message(context.getProperty(TITLE).evaluateAttributeExpressions(flowFile).getValue(), null);
-            try (InputStream is = session.read(flowFile);) {
-                message.setText(new String(is.readAllBytes(), StandardCharsets.UTF_8));
-            }
-
-            StringEntity params = new StringEntity(new Gson().toJson(message));
-            request.setEntity(params);
-            HttpResponse response = httpClient.execute(request);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            session.transfer(flowFile, REL_FAIL);
-        } catch (ClientProtocolException e) {
-            e.printStackTrace();
-            session.transfer(flowFile, REL_FAIL);
+            spool.append(body.get());
         } catch (IOException e) {
-            e.printStackTrace();
-            session.transfer(flowFile, REL_FAIL);
+            getLogger().error("Unable to spool {} flow files due to {}", new Object[]{flowFiles.size(), e.getMessage()}, e);
+            session.transfer(flowFiles, REL_FAIL);
+            return;
+        }
+        session.adjustCounter("Messages Spooled", 1, false);
+        for (final FlowFile flowFile : flowFiles) {
+            session.transfer(session.putAttribute(flowFile, SPOOLED, "true"), REL_SPOOLED);
+        }
+    }
+
+    /**
+     * sends the spooled messages in order until the spool is empty or the webhook fails, then schedules itself again
+     */
+    private void drain(final String webhook, final AdaptiveRateLimiter limiter) {
+        final MessageSpool spool = this.spool;
+        long delayMillis = SPOOL_POLL_MILLIS;
+        try {
+            String body;
+            while (!Thread.currentThread().isInterrupted() && (body = spool.peek()) != null) {
+                if (!limiter.tryAcquire()) {
+                    delayMillis = SPOOL_POLL_MILLIS / 4;
+                    break;
+                }
+                final WebhookResponse response = post(webhook, new StringEntity(body, ContentType.APPLICATION_JSON));
+                if (response.getOutcome() == WebhookResponse.Outcome.SUCCESS) {
+                    limiter.onSuccess();
+                    spool.remove();
+                    drainBackoffMillis = 0;
+                } else if (response.getOutcome() == WebhookResponse.Outcome.FAILURE) {
+                    getLogger().error("Teams rejected a spooled message with HTTP {}, the message is moved to {}",
+                        new Object[]{response.getStatus(), MessageSpool.DEAD_LETTER_FILE});
+                    spool.reject(body);
+                } else {
+                    limiter.onThrottled(response.getRetryAfterMillis());
+                    delayMillis = Math.max(nextDrainBackoff(), response.getRetryAfterMillis());
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // anything but an interrupt must not end the draining
+            delayMillis = nextDrainBackoff();
+            getLogger().warn("Unable to send spooled messages due to {}, retrying in {} ms", new Object[]{e.getMessage(), delayMillis}, e);
+        }
+
+        final ScheduledExecutorService drainer = spoolDrainer;
+        if (drainer != null) {
+            try {
+                drainer.schedule(() -> drain(webhook, limiter), delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // stopped
+            }
         }
-        session.transfer(flowFile, REL_SUCC);
+    }
+
+    private long nextDrainBackoff() {
+        drainBackoffMillis = drainBackoffMillis == 0 ? SPOOL_POLL_MILLIS : Math.min(SPOOL_MAX_BACKOFF_MILLIS, drainBackoffMillis * 2);
+        return drainBackoffMillis;
+    }
+
+    /**
+     * @return number of spooled messages, 0 without spool
+     */
+    public long getSpoolSize() {
+        final MessageSpool spool = this.spool;
+        return spool == null ? 0 : spool.getEntries();
+    }
+
+    /**
+     * reports the number of messages waiting in the spool directory, which is read from disk as NiFi verifies stopped processors only
+     */
+    @Override
+    public List<ConfigVerificationResult> verify(final ProcessContext context, final ComponentLog verificationLogger, final Map<String, String> attributes) {
+        if (!context.getProperty(SPOOL_DIRECTORY).isSet()) {
+            return Collections.singletonList(new ConfigVerificationResult.Builder()
+                .verificationStepName("Spool")
+                .outcome(ConfigVerificationResult.Outcome.SKIPPED)
+                .explanation("No Spool Directory configured")
+                .build());
+        }
+        try {
+            final MessageSpool spool = new MessageSpool(Paths.get(context.getProperty(SPOOL_DIRECTORY).getValue()));
+            return Collections.singletonList(new ConfigVerificationResult.Builder()
+                .verificationStepName("Spool")
+                .outcome(ConfigVerificationResult.Outcome.SUCCESSFUL)
+                .explanation(spool.getEntries() + " messages spooled")
+                .build());
+        } catch (IOException e) {
+            return Collections.singletonList(new ConfigVerificationResult.Builder()
+                .verificationStepName("Spool")
+                .outcome(ConfigVerificationResult.Outcome.FAILED)
+                .explanation("Unable to read spool due to " + e.getMessage())
+                .build());
+        }
+    }
+
+    /**
+     * request body which is only read when it has to be spooled
+     */
+    private interface Body {
+        String get() throws IOException;
     }
 }
@@ -0,0 +1,72 @@
+package teams.processors.nifi_notify_teams;
+
+import org.apache.http.client.utils.DateUtils;
+
+import java.util.Date;
+
+/**
+ * status of a webhook response and the time the server asked to wait before the next request
+ */
+class WebhookResponse {
+
+    enum Outcome {
+        SUCCESS,
+        /**
+         * HTTP 429, the request may be repeated after the retry after time
+         */
+        THROTTLED,
+        /**
+         * server error or timeout, the request may be repeated
+         */
+        RETRY,
+        /**
+         * the request is rejected and must not be repeated
+         */
+        FAILURE
+    }
+
+    private final int status;
+    private final long retryAfterMillis;
+
+    WebhookResponse(final int status, final String retryAfter) {
+        this.status = status;
+        this.retryAfterMillis = parseRetryAfter(retryAfter);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    Outcome getOutcome() {
+        if (status >= 200 && status < 300) {
+            return Outcome.SUCCESS;
+        }
+        if (status == 429) {
+            return Outcome.THROTTLED;
+        }
+        if (status >= 500 || status == 408) {
+            return Outcome.RETRY;
+        }
+        return Outcome.FAILURE;
+    }
+
+    /**
+     * @param value delay in seconds or a HTTP date
+     * @return milliseconds to wait, 0 if not set or not readable
+     */
+    static long parseRetryAfter(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            final Date date = DateUtils.parseDate(value.trim());
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+}
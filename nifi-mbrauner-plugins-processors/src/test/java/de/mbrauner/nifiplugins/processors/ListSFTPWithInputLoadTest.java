@@ -0,0 +1,55 @@
+package de.mbrauner.nifiplugins.processors;
+
+import com.github.stefanbirkner.fakesftpserver.rule.FakeSftpServerRule;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * lists a directory with many files repeatedly, only executed in the load-test profile,
+ * sized by -Dload.listings and -Dload.iterations
+ */
+public class ListSFTPWithInputLoadTest {
+
+    @Rule
+    public final FakeSftpServerRule sftpServer = new FakeSftpServerRule().addUser("nutzer", "passwort").setPort(12346);
+
+    private final int listings = Integer.getInteger("load.listings", 100_000);
+    private final int iterations = Integer.getInteger("load.iterations", 5);
+
+    private TestRunner testRunner;
+
+    @Before
+    public void init() throws IOException {
+        testRunner = TestRunners.newTestRunner(ListSFTPWithInput.class);
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "127.0.0.1");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_USERNAME, "nutzer");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_PASSWORD, "passwort");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_PORT, "12346");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_REMOTE_DIR, "/directory/");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_FILE_FILTER, ".*");
+
+        for (int i = 0; i < listings; i++) {
+            sftpServer.putFile("/directory/file" + i + ".txt", "content", UTF_8);
+        }
+    }
+
+    @Test
+    public void loadListing() {
+        LoadTestReport report = new LoadTestReport("list.sftp");
+        while (report.nextRound(iterations)) {
+            testRunner.enqueue(new byte[0]);
+            report.time(listings, () -> testRunner.run(1));
+            testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.SUCCESS, listings);
+            testRunner.clearTransferState();
+            testRunner.clearProvenanceEvents();
+        }
+        report.finish();
+    }
+}
@@ -17,9 +17,15 @@
 package de.mbrauner.nifiplugins.processors;
 
 import com.github.stefanbirkner.fakesftpserver.rule.FakeSftpServerRule;
+import de.mbrauner.nifiplugins.services.StandardSSHSessionPool;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.Buffer;
+import net.schmizz.sshj.common.KeyType;
+import net.schmizz.sshj.transport.verification.HostKeyVerifier;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.provenance.ProvenanceEventRecord;
 import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -27,10 +33,20 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -40,6 +56,9 @@ public class ListSFTPWithInputTest {
     @Rule
     public final FakeSftpServerRule sftpServer = new FakeSftpServerRule().addUser("nutzer", "passwort").setPort(12345);
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     private TestRunner testRunner;
 
     @Before
@@ -228,4 +247,162 @@ public class ListSFTPWithInputTest {
                 .containsKey("path")//added by default
         ;
     }
+
+    @Test
+    public void testSessionPool() throws InitializationException {
+        StandardSSHSessionPool pool = new StandardSSHSessionPool();
+        testRunner.addControllerService("pool", pool);
+        testRunner.enableControllerService(pool);
+        testRunner.setProperty(ListSFTPWithInput.SSH_SESSION_POOL, "pool");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "127.0.0.1");
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.SUCCESS, 2);
+        assertThat(pool.getOpenSessions()).isEqualTo(1);
+
+        testRunner.disableControllerService(pool);
+        assertThat(pool.getOpenSessions()).isZero();
+    }
+
+    @Test
+    public void testSessionPoolKnownHosts() throws InitializationException, IOException {
+        File knownHosts = folder.newFile("known_hosts");
+        Files.write(knownHosts.toPath(), knownHostsLine(serverKey()).getBytes(UTF_8));
+        StandardSSHSessionPool pool = new StandardSSHSessionPool();
+        testRunner.addControllerService("pool", pool);
+        testRunner.setProperty(pool, StandardSSHSessionPool.KNOWN_HOSTS_FILE, knownHosts.getAbsolutePath());
+        testRunner.enableControllerService(pool);
+        testRunner.setProperty(ListSFTPWithInput.SSH_SESSION_POOL, "pool");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "127.0.0.1");
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.SUCCESS, 1);
+    }
+
+    @Test
+    public void testSessionPoolNotWithStrictHostKeyChecking() throws InitializationException, IOException {
+        StandardSSHSessionPool pool = new StandardSSHSessionPool();
+        testRunner.addControllerService("pool", pool);
+        testRunner.enableControllerService(pool);
+        testRunner.setProperty(ListSFTPWithInput.SSH_SESSION_POOL, "pool");
+        testRunner.setProperty(ListSFTPWithInput.STRICT_HOST_KEY_CHECKING, "true");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_KNOWN_HOSTS_FILE, folder.newFile("known_hosts").getAbsolutePath());
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testTransportTuning() {
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "127.0.0.1");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_CIPHERS, "aes128-ctr, aes256-ctr");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_MACS, "hmac-sha2-256");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_COMPRESSION, "true");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_KEEP_ALIVE_INTERVAL, "5 sec");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_SOCKET_BUFFER_SIZE, "256 KB");
+        testRunner.assertValid();
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.SUCCESS, 1);
+    }
+
+    @Test
+    public void testUnknownCipher() {
+        testRunner.setProperty(ListSFTPWithInput.SFTP_CIPHERS, "aes128-ctr, rot13");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testKnownHosts() throws IOException, NoSuchAlgorithmException {
+        File knownHosts = folder.newFile("known_hosts");
+        Files.write(knownHosts.toPath(), knownHostsLine(serverKey()).getBytes(UTF_8));
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "127.0.0.1");
+        testRunner.setProperty(ListSFTPWithInput.STRICT_HOST_KEY_CHECKING, "true");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_KNOWN_HOSTS_FILE, knownHosts.getAbsolutePath());
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(2, false, true);
+        testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.SUCCESS, 2);
+
+        // another key for the host is picked up without restarting the processor
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        Files.write(knownHosts.toPath(), knownHostsLine(generator.generateKeyPair().getPublic()).getBytes(UTF_8));
+        Files.setLastModifiedTime(knownHosts.toPath(), FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        testRunner.clearTransferState();
+        testRunner.enqueue(new byte[0]);
+        testRunner.run(1, true, false);
+        testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.FAILURE, 1);
+    }
+
+    @Test
+    public void testStrictNeedsKnownHosts() {
+        testRunner.setProperty(ListSFTPWithInput.STRICT_HOST_KEY_CHECKING, "true");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testListingOutputPerListing() throws IOException {
+        sftpServer.putFile("/directory/other.txt", "other", UTF_8);
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "${sftp.remote.host}");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_LISTING_OUTPUT, ListSFTPWithInput.OUTPUT_PER_LISTING);
+
+        MockFlowFile ff = new MockFlowFile(321);
+        ff.putAttributes(Collections.singletonMap("sftp.remote.host", "127.0.0.1"));
+        testRunner.enqueue(ff);
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.SUCCESS, 1);
+        MockFlowFile ffReturn = testRunner.getFlowFilesForRelationship(ListSFTPWithInput.SUCCESS).get(0);
+        assertThat(ffReturn.getAttributes())
+                .containsEntry("sftp.remote.host", "127.0.0.1")
+                .containsEntry("sftp.remote.port", "12345")
+                .containsEntry("sftp.remote.user", "nutzer")
+                .containsEntry("directory", "/directory/")
+                .containsEntry(ListSFTPWithInput.LISTING_COUNT, "2")
+                .containsEntry(ListSFTPWithInput.LISTING_BYTES, "20")
+                .containsEntry("mime.type", "text/plain");
+        assertThat(ffReturn.getContent().split("\n")).containsExactlyInAnyOrder("/directory/file.txt", "/directory/other.txt");
+        assertThat(testRunner.getProvenanceEvents()
+                .stream().map(ProvenanceEventRecord::getEventType)).containsExactly(ProvenanceEventType.RECEIVE);
+        assertThat(testRunner.getProvenanceEvents().get(0).getTransitUri()).isEqualTo("sftp://127.0.0.1:12345/directory/");
+    }
+
+    @Test
+    public void testListingOutputPerListingMissingFile() {
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "127.0.0.1");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_FILE_FILTER, ".*\\.dat");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_LISTING_OUTPUT, ListSFTPWithInput.OUTPUT_PER_LISTING);
+
+        testRunner.enqueue("input");
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.NO_FILE, 1);
+        MockFlowFile ffReturn = testRunner.getFlowFilesForRelationship(ListSFTPWithInput.NO_FILE).get(0);
+        ffReturn.assertContentEquals("input");
+        ffReturn.assertAttributeEquals("sftp.remote.host", "127.0.0.1");
+        ffReturn.assertAttributeNotExists(ListSFTPWithInput.LISTING_COUNT);
+        assertThat(testRunner.getProvenanceEvents()).isEmpty();
+    }
+
+    private static PublicKey serverKey() throws IOException {
+        AtomicReference<PublicKey> serverKey = new AtomicReference<>();
+        try (SSHClient ssh = new SSHClient()) {
+            ssh.addHostKeyVerifier(new HostKeyVerifier() {
+                @Override
+                public boolean verify(String hostname, int port, PublicKey key) {
+                    serverKey.set(key);
+                    return true;
+                }
+
+                @Override
+                public List<String> findExistingAlgorithms(String hostname, int port) {
+                    return Collections.emptyList();
+                }
+            });
+            ssh.connect("127.0.0.1", 12345);
+        }
+        return serverKey.get();
+    }
+
+    private static String knownHostsLine(PublicKey key) {
+        return "[127.0.0.1]:12345 " + KeyType.fromKey(key) + " "
+                + Base64.getEncoder().encodeToString(new Buffer.PlainBuffer().putPublicKey(key).getCompactData()) + "\n";
+    }
 }
@@ -0,0 +1,103 @@
+package de.mbrauner.nifiplugins.processors;
+
+import de.mbrauner.nifiplugins.processors.util.Histogram;
+import org.apache.nifi.util.FormatUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * throughput, latency percentiles and heap growth of a load test run, the latency is recorded in microseconds.
+ * A minimum throughput is enforced when the system property {@code <name>.min.throughput} is set,
+ * a maximum heap growth in KB when {@code <name>.max.heap.growth} is set.
+ * With -Dload.duration, e.g. {@code -Dload.duration="30 min"}, the rounds of a test are repeated for that time
+ * and the heap growth is logged about every tenth of it.
+ */
+public class LoadTestReport {
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(LoadTestReport.class);
+
+    private static final long DURATION_NANOS = FormatUtils.getTimeDuration(System.getProperty("load.duration", "0 sec"), TimeUnit.NANOSECONDS);
+
+    private final String name;
+    private final Histogram latencyMicros = new Histogram();
+    private final long startNanos;
+    private final long startHeap;
+    private long items;
+    private long peakHeap;
+    private int rounds;
+    private long lastHeapLogNanos;
+
+    public LoadTestReport(final String name) {
+        this.name = name;
+        this.startHeap = usedHeap(true);
+        this.peakHeap = startHeap;
+        this.startNanos = System.nanoTime();
+        this.lastHeapLogNanos = startNanos;
+    }
+
+    /**
+     * @return true for the first round and while the duration set by -Dload.duration is not over
+     */
+    public boolean nextRound() {
+        return nextRound(1);
+    }
+
+    /**
+     * @param minRounds rounds which run regardless of the duration
+     * @return true for the first minRounds rounds and while the duration set by -Dload.duration is not over
+     */
+    public boolean nextRound(final int minRounds) {
+        final long now = System.nanoTime();
+        if (rounds > 0 && DURATION_NANOS > 0 && now - lastHeapLogNanos >= DURATION_NANOS / 10) {
+            lastHeapLogNanos = now;
+            log.info("{}: {} rounds in {} s, heap growth {} KB", name, rounds, TimeUnit.NANOSECONDS.toSeconds(now - startNanos),
+                (usedHeap(true) - startHeap) / 1024);
+        }
+        return rounds++ < minRounds || now - startNanos < DURATION_NANOS;
+    }
+
+    /**
+     * runs one operation and records its latency
+     *
+     * @param count number of items handled by the operation
+     */
+    public void time(final int count, final Runnable operation) {
+        final long start = System.nanoTime();
+        operation.run();
+        latencyMicros.record((System.nanoTime() - start) / 1000);
+        items += count;
+        peakHeap = Math.max(peakHeap, usedHeap(false));
+    }
+
+    /**
+     * logs the report and checks the minimum throughput
+     */
+    public void finish() {
+        final long nanos = System.nanoTime() - startNanos;
+        final double throughput = items * 1_000_000_000d / nanos;
+        final long heapGrowth = usedHeap(true) - startHeap;
+        log.info("{}: {} items in {} ms, {} items/s, latency p50={} us p99={} us max={} us, heap growth {} KB, peak heap {} KB",
+            name, items, nanos / 1_000_000, Math.round(throughput), latencyMicros.getPercentile(50), latencyMicros.getPercentile(99),
+            latencyMicros.getMax(), heapGrowth / 1024, peakHeap / 1024);
+
+        final String maxHeapGrowth = System.getProperty(name + ".max.heap.growth");
+        if (maxHeapGrowth != null) {
+            assertThat(heapGrowth / 1024).as(name + " heap growth KB").isLessThanOrEqualTo(Long.parseLong(maxHeapGrowth));
+        }
+
+        final String minThroughput = System.getProperty(name + ".min.throughput");
+        if (minThroughput != null) {
+            assertThat(throughput).as(name + " items/s").isGreaterThanOrEqualTo(Double.parseDouble(minThroughput));
+        }
+    }
+
+    private static long usedHeap(final boolean collect) {
+        final Runtime runtime = Runtime.getRuntime();
+        if (collect) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,62 @@
+package de.mbrauner.nifiplugins.processors;
+
+import com.github.stefanbirkner.fakesftpserver.rule.FakeSftpServerRule;
+import org.apache.nifi.processors.standard.PutFileTransfer;
+import org.apache.nifi.processors.standard.util.FileTransfer;
+import org.apache.nifi.processors.standard.util.SFTPTransfer;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * uploads many small files, only executed in the load-test profile, sized by -Dload.uploads per round and -Dload.upload.size
+ */
+public class PutSFTPWithErrorMessageLoadTest {
+
+    @Rule
+    public final FakeSftpServerRule sftpServer = new FakeSftpServerRule().addUser("nutzer", "passwort").setPort(12347);
+
+    private final int uploads = Integer.getInteger("load.uploads", 10_000);
+    private final int size = Integer.getInteger("load.upload.size", 4096);
+
+    private TestRunner testRunner;
+
+    @Before
+    public void init() {
+        testRunner = TestRunners.newTestRunner(PutSFTPWithErrorMessage.class);
+        testRunner.setProperty(FileTransfer.HOSTNAME, "127.0.0.1");
+        testRunner.setProperty(FileTransfer.USERNAME, "nutzer");
+        testRunner.setProperty(FileTransfer.PASSWORD, "passwort");
+        testRunner.setProperty(SFTPTransfer.PORT, "12347");
+        testRunner.setProperty(FileTransfer.REMOTE_PATH, "/");
+    }
+
+    @Test
+    public void loadUpload() {
+        byte[] content = new byte[size];
+        LoadTestReport report = new LoadTestReport("put.sftp");
+        boolean first = true;
+        while (report.nextRound()) {
+            for (int i = 0; i < uploads; i++) {
+                testRunner.enqueue(content, Collections.singletonMap("filename", "file" + i + ".bin"));
+            }
+            for (int i = 0; i < uploads; i++) {
+                final boolean initialize = first;
+                first = false;
+                report.time(1, () -> testRunner.run(1, false, initialize));
+            }
+            testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_SUCCESS, uploads);
+            assertThat(sftpServer.existsFile("/file" + (uploads - 1) + ".bin")).isTrue();
+            testRunner.clearTransferState();
+            testRunner.clearProvenanceEvents();
+        }
+        testRunner.run(1, true, false);
+        report.finish();
+    }
+}
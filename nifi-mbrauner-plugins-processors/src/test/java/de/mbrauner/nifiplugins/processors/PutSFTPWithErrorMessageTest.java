@@ -1,10 +1,15 @@
 package de.mbrauner.nifiplugins.processors;
 
 import com.github.stefanbirkner.fakesftpserver.rule.FakeSftpServerRule;
+import de.mbrauner.nifiplugins.services.StandardSSHSessionPool;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.nifi.components.ConfigVerificationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processors.standard.PutFileTransfer;
 import org.apache.nifi.processors.standard.util.FileTransfer;
 import org.apache.nifi.processors.standard.util.SFTPTransfer;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -12,9 +17,14 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -67,4 +77,208 @@ public class PutSFTPWithErrorMessageTest {
         ;
         assertThat(ffReturn.getAttribute("ExceptionReport")).startsWith("java.io.IOException: java.io.IOException: Unable to put content to /notExisting/").endsWith("mockFlowFile due to 2: No such file or directory");
     }
+
+    @Test
+    public void testResumableUpload() throws IOException {
+        testRunner.setProperty(PutSFTPWithErrorMessage.RESUMABLE_UPLOAD, "true");
+        sftpServer.putFile("/.resume.txt.part", "ABCDE", StandardCharsets.UTF_8);
+
+        MockFlowFile ff = new MockFlowFile(1);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("filename", "resume.txt");
+        attributes.put(PutSFTPWithErrorMessage.RESUME_TEMP_FILENAME, ".resume.txt.part");
+        attributes.put(PutSFTPWithErrorMessage.RESUME_OFFSET, "5");
+        ff.putAttributes(attributes);
+        ff.setData("0123456789".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue(ff);
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_SUCCESS, 1);
+        assertThat(sftpServer.getFileContent("/resume.txt", StandardCharsets.UTF_8)).isEqualTo("ABCDE56789");
+        assertThat(sftpServer.existsFile("/.resume.txt.part")).isFalse();
+        assertThat(testRunner.getFlowFilesForRelationship(PutFileTransfer.REL_SUCCESS).get(0).getAttributes())
+                .doesNotContainKey(PutSFTPWithErrorMessage.RESUME_TEMP_FILENAME)
+                .doesNotContainKey(PutSFTPWithErrorMessage.RESUME_OFFSET)
+                .containsEntry(PutSFTPWithErrorMessage.TRANSFER_BYTES, "10")
+                .containsEntry(PutSFTPWithErrorMessage.TRANSFER_WIRE_BYTES, "5");
+    }
+
+    @Test
+    public void testResumableUploadRestartsOnLargerTempFile() throws IOException {
+        testRunner.setProperty(PutSFTPWithErrorMessage.RESUMABLE_UPLOAD, "true");
+        sftpServer.putFile("/.resume.txt.part", "ABCDEFG", StandardCharsets.UTF_8);
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("filename", "resume.txt");
+        attributes.put(PutSFTPWithErrorMessage.RESUME_TEMP_FILENAME, ".resume.txt.part");
+        attributes.put(PutSFTPWithErrorMessage.RESUME_OFFSET, "5");
+        testRunner.enqueue("0123456789".getBytes(StandardCharsets.UTF_8), attributes);
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_SUCCESS, 1);
+        assertThat(sftpServer.getFileContent("/resume.txt", StandardCharsets.UTF_8)).isEqualTo("0123456789");
+    }
+
+    @Test
+    public void testResumableUploadNotWithTemporaryFilename() {
+        testRunner.setProperty(PutSFTPWithErrorMessage.RESUMABLE_UPLOAD, "true");
+        testRunner.setProperty(FileTransfer.TEMP_FILENAME, "${filename}.tmp");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testGzipCompression() throws IOException {
+        testRunner.setProperty(PutSFTPWithErrorMessage.COMPRESSION_FORMAT, "gzip");
+
+        MockFlowFile ff = new MockFlowFile(1);
+        ff.putAttributes(Collections.singletonMap("filename", "data.csv"));
+        ff.setData("a;b;c\na;b;c\na;b;c\n".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue(ff);
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_SUCCESS, 1);
+        assertThat(sftpServer.existsFile("/data.csv.gz")).isTrue();
+        assertThat(testRunner.getFlowFilesForRelationship(PutFileTransfer.REL_SUCCESS).get(0).getAttributes())
+                .containsEntry("filename", "data.csv")
+                .containsEntry(PutSFTPWithErrorMessage.REMOTE_FILENAME, "data.csv.gz");
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(sftpServer.getFileContent("/data.csv.gz")))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("a;b;c\na;b;c\na;b;c\n");
+        }
+    }
+
+    @Test
+    public void testCompressionNotResumable() {
+        testRunner.setProperty(PutSFTPWithErrorMessage.COMPRESSION_FORMAT, "zstd");
+        testRunner.setProperty(PutSFTPWithErrorMessage.RESUMABLE_UPLOAD, "true");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testCircuitBreakerRequeuesOpenHost() {
+        testRunner.setProperty(FileTransfer.REMOTE_PATH, "/notExisting");
+        testRunner.setProperty(PutSFTPWithErrorMessage.CIRCUIT_BREAKER_THRESHOLD, "1");
+        testRunner.setProperty(PutSFTPWithErrorMessage.CIRCUIT_BREAKER_OPEN_DURATION, "1 hour");
+
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8));
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_FAILURE, 1);
+        testRunner.assertQueueNotEmpty();
+        assertThat(testRunner.getCounterValue("Circuit opened")).isEqualTo(1L);
+        assertThat(testRunner.getCounterValue("Re-queued by open circuit")).isEqualTo(1L);
+    }
+
+    @Test
+    public void testCircuitBreakerTrialReleasedByRejectedFile() {
+        testRunner.setProperty(FileTransfer.REMOTE_PATH, "/notExisting");
+        testRunner.setProperty(FileTransfer.REJECT_ZERO_BYTE, "true");
+        testRunner.setProperty(PutSFTPWithErrorMessage.CIRCUIT_BREAKER_THRESHOLD, "1");
+        testRunner.setProperty(PutSFTPWithErrorMessage.CIRCUIT_BREAKER_OPEN_DURATION, "0 sec");
+
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue("third".getBytes(StandardCharsets.UTF_8));
+        testRunner.run(2);
+        testRunner.assertTransferCount(PutFileTransfer.REL_REJECT, 1);
+        testRunner.assertTransferCount(PutFileTransfer.REL_FAILURE, 2);
+        assertThat(testRunner.getCounterValue("Re-queued by open circuit")).isNull();
+    }
+
+    @Test
+    public void testAggregationRejectsZeroByteFiles() throws IOException {
+        testRunner.setProperty(PutSFTPWithErrorMessage.AGGREGATION_FORMAT, PutSFTPWithErrorMessage.AGGREGATION_TAR);
+        testRunner.setProperty(PutSFTPWithErrorMessage.AGGREGATION_FILENAME, "bundle");
+        testRunner.setProperty(FileTransfer.REJECT_ZERO_BYTE, "true");
+
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("filename", "a.txt"));
+        testRunner.enqueue(new byte[0], Collections.singletonMap("filename", "empty.txt"));
+        testRunner.run(1);
+        testRunner.assertTransferCount(PutFileTransfer.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(PutFileTransfer.REL_REJECT, 1);
+
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(sftpServer.getFileContent("/bundle.tar")))) {
+            assertThat(tar.getNextTarEntry().getName()).isEqualTo("a.txt");
+            assertThat(tar.getNextTarEntry()).isNull();
+        }
+    }
+
+    @Test
+    public void testTarAggregation() throws IOException {
+        testRunner.setProperty(PutSFTPWithErrorMessage.AGGREGATION_FORMAT, PutSFTPWithErrorMessage.AGGREGATION_TAR);
+        testRunner.setProperty(PutSFTPWithErrorMessage.AGGREGATION_FILENAME, "bundle");
+
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("filename", "a.txt"));
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("filename", "b.txt"));
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_SUCCESS, 2);
+        assertThat(testRunner.getFlowFilesForRelationship(PutFileTransfer.REL_SUCCESS).get(1).getAttributes())
+                .containsEntry(PutSFTPWithErrorMessage.ARCHIVE_PATH, "/bundle.tar")
+                .containsEntry(PutSFTPWithErrorMessage.ARCHIVE_ENTRY, "b.txt");
+
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(sftpServer.getFileContent("/bundle.tar")))) {
+            TarArchiveEntry entry = tar.getNextTarEntry();
+            assertThat(entry.getName()).isEqualTo("a.txt");
+            assertThat(new String(tar.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("first");
+            entry = tar.getNextTarEntry();
+            assertThat(entry.getName()).isEqualTo("b.txt");
+            assertThat(new String(tar.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("second");
+            assertThat(tar.getNextTarEntry()).isNull();
+        }
+    }
+
+    @Test
+    public void testTransferMetrics() {
+        testRunner.enqueue("0123456789".getBytes(StandardCharsets.UTF_8));
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_SUCCESS, 1);
+        assertThat(testRunner.getFlowFilesForRelationship(PutFileTransfer.REL_SUCCESS).get(0).getAttributes())
+                .containsEntry(PutSFTPWithErrorMessage.TRANSFER_BYTES, "10")
+                .containsKey(PutSFTPWithErrorMessage.TRANSFER_MILLIS)
+                .containsKey(PutSFTPWithErrorMessage.TRANSFER_RATE)
+                .doesNotContainKey(PutSFTPWithErrorMessage.TRANSFER_WIRE_BYTES);
+        assertThat(testRunner.getCounterValue("Files Transferred")).isEqualTo(1L);
+        assertThat(testRunner.getCounterValue("Bytes Transferred")).isEqualTo(10L);
+
+        PutSFTPWithErrorMessage processor = (PutSFTPWithErrorMessage) testRunner.getProcessor();
+        assertThat(processor.getTransferStatistics()).containsOnlyKeys("127.0.0.1");
+        assertThat(processor.getTransferStatistics().get("127.0.0.1")).contains("count=1");
+        List<ConfigVerificationResult> results = processor.verify(testRunner.getProcessContext(), testRunner.getLogger(), Collections.emptyMap());
+        assertThat(results).hasSize(1);
+        assertThat(results.get(0).getVerificationStepName()).isEqualTo("Transfer Statistics 127.0.0.1");
+        assertThat(results.get(0).getOutcome()).isEqualTo(ConfigVerificationResult.Outcome.SUCCESSFUL);
+        assertThat(results.get(0).getExplanation()).contains("count=1");
+    }
+
+    @Test
+    public void testSessionPool() throws InitializationException, IOException {
+        StandardSSHSessionPool pool = new StandardSSHSessionPool();
+        testRunner.addControllerService("pool", pool);
+        testRunner.setProperty(pool, StandardSSHSessionPool.MAX_SESSIONS_PER_HOST, "1");
+        testRunner.enableControllerService(pool);
+        testRunner.setProperty(PutSFTPWithErrorMessage.SSH_SESSION_POOL, "pool");
+        testRunner.setProperty(FileTransfer.BATCH_SIZE, "1");
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("filename", "first.txt"));
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("filename", "second.txt"));
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(PutFileTransfer.REL_SUCCESS, 2);
+        assertThat(sftpServer.getFileContent("/second.txt", StandardCharsets.UTF_8)).isEqualTo("second");
+        assertThat(pool.getOpenSessions()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSessionPoolNotWithPrivateKey() throws InitializationException {
+        StandardSSHSessionPool pool = new StandardSSHSessionPool();
+        testRunner.addControllerService("pool", pool);
+        testRunner.enableControllerService(pool);
+        testRunner.setProperty(PutSFTPWithErrorMessage.SSH_SESSION_POOL, "pool");
+        testRunner.setProperty(SFTPTransfer.PRIVATE_KEY_PATH, "/tmp/id_rsa");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testSessionPoolNotWithStrictHostKeyChecking() throws InitializationException {
+        StandardSSHSessionPool pool = new StandardSSHSessionPool();
+        testRunner.addControllerService("pool", pool);
+        testRunner.enableControllerService(pool);
+        testRunner.setProperty(PutSFTPWithErrorMessage.SSH_SESSION_POOL, "pool");
+        testRunner.setProperty(SFTPTransfer.STRICT_HOST_KEY_CHECKING, "true");
+        testRunner.assertNotValid();
+    }
 }
@@ -0,0 +1,65 @@
+package de.mbrauner.nifiplugins.processors;
+
+import com.github.stefanbirkner.fakesftpserver.rule.FakeSftpServerRule;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * compares ciphers and compression of ListSFTPWithInput against the local sshd, only executed in the load-test profile,
+ * sized by -Dload.ssh.files and -Dload.iterations
+ */
+public class SSHTransportLoadTest {
+
+    @Rule
+    public final FakeSftpServerRule sftpServer = new FakeSftpServerRule().addUser("nutzer", "passwort").setPort(12348);
+
+    private final int files = Integer.getInteger("load.ssh.files", 10_000);
+    private final int iterations = Integer.getInteger("load.iterations", 5);
+
+    @Before
+    public void init() throws IOException {
+        for (int i = 0; i < files; i++) {
+            sftpServer.putFile("/directory/a_rather_long_file_name_as_produced_by_our_partners_" + i + ".csv", "content", UTF_8);
+        }
+    }
+
+    @Test
+    public void loadTransportSettings() {
+        list("ssh.default", null, false);
+        list("ssh.aes128-gcm", "aes128-gcm@openssh.com", false);
+        list("ssh.chacha20-poly1305", "chacha20-poly1305@openssh.com", false);
+        list("ssh.aes256-ctr", "aes256-ctr", false);
+        list("ssh.aes128-gcm.zlib", "aes128-gcm@openssh.com", true);
+    }
+
+    private void list(String name, String ciphers, boolean compression) {
+        TestRunner testRunner = TestRunners.newTestRunner(ListSFTPWithInput.class);
+        testRunner.setProperty(ListSFTPWithInput.SFTP_HOSTNAME, "127.0.0.1");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_USERNAME, "nutzer");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_PASSWORD, "passwort");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_PORT, "12348");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_REMOTE_DIR, "/directory/");
+        testRunner.setProperty(ListSFTPWithInput.SFTP_FILE_FILTER, ".*");
+        if (ciphers != null) {
+            testRunner.setProperty(ListSFTPWithInput.SFTP_CIPHERS, ciphers);
+        }
+        testRunner.setProperty(ListSFTPWithInput.SFTP_COMPRESSION, Boolean.toString(compression));
+
+        LoadTestReport report = new LoadTestReport(name);
+        while (report.nextRound(iterations)) {
+            testRunner.enqueue(new byte[0]);
+            report.time(files, () -> testRunner.run(1));
+            testRunner.assertAllFlowFilesTransferred(ListSFTPWithInput.SUCCESS, files);
+            testRunner.clearTransferState();
+            testRunner.clearProvenanceEvents();
+        }
+        report.finish();
+    }
+}
@@ -0,0 +1,72 @@
+package de.mbrauner.nifiplugins.processors;
+
+import com.icegreen.greenmail.junit4.GreenMailRule;
+import com.icegreen.greenmail.store.FolderException;
+import com.icegreen.greenmail.user.UserException;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * sends bulk mail to a local GreenMail server with and without connection reuse, only executed in the load-test profile,
+ * sized by -Dload.emails per round
+ */
+public class SendEmailLoadTest {
+
+    @Rule public final GreenMailRule greenMail = new GreenMailRule(ServerSetupTest.SMTP);
+
+    private final int emails = Integer.getInteger("load.emails", 10_000);
+
+    private TestRunner testRunner;
+
+    @Before public void before() throws UserException {
+        greenMail.getUserManager().createUser("send@test.test", "send@test.test", "send");
+        greenMail.getUserManager().createUser("receive@test.test", "receive@test.test", "receive");
+
+        testRunner = TestRunners.newTestRunner(SendEmail.class);
+        testRunner.setProperty(SendEmail.SMTP_HOSTNAME, greenMail.getSmtp().getBindTo());
+        testRunner.setProperty(SendEmail.SMTP_PORT, Integer.toString(greenMail.getSmtp().getPort()));
+        testRunner.setProperty(SendEmail.SMTP_USERNAME, "send@test.test");
+        testRunner.setProperty(SendEmail.SMTP_PASSWORD, "send");
+        testRunner.setProperty(SendEmail.FROM, "send@test.test");
+        testRunner.setProperty(SendEmail.TO, "receive@test.test");
+    }
+
+    @Test public void loadBulkMail() throws FolderException {
+        send("send.email", true);
+    }
+
+    @Test public void loadBulkMailWithoutReuse() throws FolderException {
+        send("send.email.no.reuse", false);
+    }
+
+    private void send(String name, boolean reuse) throws FolderException {
+        testRunner.setProperty(SendEmail.REUSE_CONNECTION, Boolean.toString(reuse));
+        LoadTestReport report = new LoadTestReport(name);
+        boolean first = true;
+        while (report.nextRound()) {
+            for (int i = 0; i < emails; i++) {
+                testRunner.enqueue(("message " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < emails; i++) {
+                final boolean initialize = first;
+                first = false;
+                report.time(1, () -> testRunner.run(1, false, initialize));
+            }
+            testRunner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, emails);
+            assertThat(greenMail.getReceivedMessages()).hasSize(emails);
+            testRunner.clearTransferState();
+            testRunner.clearProvenanceEvents();
+            greenMail.purgeEmailFromAllMailboxes();
+        }
+        testRunner.run(1, true, false);
+        report.finish();
+    }
+}
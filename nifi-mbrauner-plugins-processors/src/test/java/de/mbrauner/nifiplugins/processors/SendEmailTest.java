@@ -4,20 +4,31 @@ import com.icegreen.greenmail.store.FolderException;
 import com.icegreen.greenmail.user.UserException;
 import groovy.util.logging.Slf4j;
 import jakarta.mail.Header;
+import jakarta.mail.BodyPart;
 import jakarta.mail.MessagingException;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.apache.nifi.components.ConfigVerificationResult;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventType;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.*;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -102,6 +113,178 @@ public class SendEmailTest {
         assertThat(mail.getHeader("gibt es nicht")).isNull();
     }
 
+    @Test public void checkExpression() throws MessagingException {
+        testRunner.setProperty(propertyDescriptor("expression") ,"${literal('wert'):toUpper()}");
+        run();
+        MimeMessage mail = getMail();
+        assertThat(mail.getHeader("X-expression")).containsOnly("WERT");
+    }
+
+    @Test public void checkReuseConnection() {
+        testRunner.setProperty(SendEmail.REUSE_CONNECTION, "true");
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue("third".getBytes(StandardCharsets.UTF_8));
+        testRunner.assertValid();
+        testRunner.run(3);
+        testRunner.assertQueueEmpty();
+        testRunner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        assertThat(greenMail.getReceivedMessages()).hasSize(3);
+    }
+
+    @Test public void checkBatch() {
+        testRunner.setProperty(SendEmail.BATCH_SIZE, "5");
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue("third".getBytes(StandardCharsets.UTF_8));
+        testRunner.assertValid();
+        testRunner.run(1);
+        testRunner.assertQueueEmpty();
+        testRunner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        assertThat(greenMail.getReceivedMessages()).hasSize(3);
+    }
+
+    @Test public void checkDigest() throws Exception {
+        testRunner.setProperty(SendEmail.CONTENT_AS_MESSAGE, "true");
+        testRunner.setProperty(SendEmail.DIGEST_WINDOW, "1 hour");
+        testRunner.setProperty(SendEmail.DIGEST_MAX_MESSAGES, "3");
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8));
+        testRunner.assertValid();
+        testRunner.run();
+        assertThat(greenMail.getReceivedMessages()).isEmpty();
+        testRunner.assertQueueNotEmpty();
+        testRunner.assertTransferCount(SendEmail.REL_SUCCESS, 0);
+
+        testRunner.enqueue("third".getBytes(StandardCharsets.UTF_8));
+        testRunner.run();
+        testRunner.assertQueueEmpty();
+        testRunner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        String body = GreenMailUtil.getBody(getMail());
+        assertThat(body).contains("content content content").contains("second").contains("third");
+        assertThat(testRunner.getProvenanceEvents().stream()
+            .filter(event -> event.getEventType() == ProvenanceEventType.SEND)
+            .map(ProvenanceEventRecord::getFlowFileUuid)
+            .distinct()
+            .count()).isEqualTo(3);
+    }
+
+    @Test public void checkDigestNeedsContentAsMessage() {
+        testRunner.setProperty(SendEmail.DIGEST_WINDOW, "1 min");
+        testRunner.assertNotValid();
+    }
+
+    @Test public void checkStreamAttachment() throws Exception {
+        testRunner.setProperty(SendEmail.ATTACH_FILE, "true");
+        testRunner.setProperty(SendEmail.STREAM_ATTACHMENT, "true");
+        run();
+        MimeMessage mail = getMail();
+        MimeMultipart multipart = (MimeMultipart) mail.getContent();
+        assertThat(multipart.getCount()).isEqualTo(2);
+        BodyPart attachment = multipart.getBodyPart(1);
+        assertThat(attachment.getHeader("Content-Transfer-Encoding")).containsOnly("base64");
+        assertThat(attachment.getFileName()).isNotEmpty();
+        assertThat(attachment.getInputStream()).hasContent("content content content");
+    }
+
+    @Test public void checkDomainRateLimit() {
+        testRunner.setProperty(SendEmail.DOMAIN_RATE_LIMITS, "example.com=100, TEST.test=1");
+        testRunner.setProperty(SendEmail.BATCH_SIZE, "5");
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8));
+        testRunner.assertValid();
+        testRunner.run(1);
+        testRunner.assertTransferCount(SendEmail.REL_SUCCESS, 1);
+        testRunner.assertQueueNotEmpty();
+        assertThat(testRunner.getCounterValue("Re-queued by rate limit")).isEqualTo(1L);
+        assertThat(greenMail.getReceivedMessages()).hasSize(1);
+    }
+
+    @Test public void checkRateLimitsValidation() {
+        testRunner.setProperty(SendEmail.DOMAIN_RATE_LIMITS, "test.test");
+        testRunner.assertNotValid();
+        testRunner.setProperty(SendEmail.DOMAIN_RATE_LIMITS, "test.test=1");
+        testRunner.setProperty(SendEmail.GLOBAL_RATE_LIMIT, "0");
+        testRunner.assertNotValid();
+    }
+
+    @Test public void checkAsyncDispatch() throws InterruptedException {
+        testRunner.setProperty(SendEmail.ASYNC_DISPATCH, "true");
+        testRunner.setProperty(SendEmail.BATCH_SIZE, "5");
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue("third".getBytes(StandardCharsets.UTF_8));
+        testRunner.assertValid();
+        testRunner.run(1, false, true);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (testRunner.getFlowFilesForRelationship(SendEmail.REL_SUCCESS).size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            testRunner.run(1, false, false);
+        }
+        testRunner.run(1, true, false);
+        testRunner.assertQueueEmpty();
+        testRunner.assertAllFlowFilesTransferred(SendEmail.REL_SUCCESS, 3);
+        assertThat(greenMail.getReceivedMessages()).hasSize(3);
+    }
+
+    @Test public void checkAsyncDispatchStoppedWhileSending() throws IOException {
+        try (ServerSocket server = new ServerSocket(0)) {
+            // accepts connections but never greets, so the send hangs
+            final List<Socket> connections = new CopyOnWriteArrayList<>();
+            final Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        connections.add(server.accept());
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            testRunner.setProperty(SendEmail.SMTP_HOSTNAME, "localhost");
+            testRunner.setProperty(SendEmail.SMTP_PORT, Integer.toString(server.getLocalPort()));
+            testRunner.setProperty(SendEmail.ASYNC_DISPATCH, "true");
+            ((SendEmail) testRunner.getProcessor()).stopTimeoutMillis = 100;
+            testRunner.run(1, true, true);
+            testRunner.assertTransferCount(SendEmail.REL_SUCCESS, 0);
+            testRunner.assertTransferCount(SendEmail.REL_FAILURE, 0);
+            testRunner.assertQueueNotEmpty();
+
+            testRunner.run(1, true, true);
+            testRunner.assertQueueEmpty();
+            testRunner.assertAllFlowFilesTransferred(SendEmail.REL_FAILURE, 1);
+            for (Socket connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    @Test public void checkAsyncDispatchNotWithDigest() {
+        testRunner.setProperty(SendEmail.ASYNC_DISPATCH, "true");
+        testRunner.setProperty(SendEmail.CONTENT_AS_MESSAGE, "true");
+        testRunner.setProperty(SendEmail.DIGEST_WINDOW, "1 min");
+        testRunner.assertNotValid();
+    }
+
+    @Test public void checkSendStatistics() {
+        testRunner.setProperty(propertyDescriptor("key") ,"value");
+        run();
+        assertThat(testRunner.getCounterValue("Emails Sent")).isEqualTo(1L);
+        assertThat(testRunner.getCounterValue("Custom Headers")).isEqualTo(1L);
+        Map<String, String> statistics = ((SendEmail) testRunner.getProcessor()).getSendStatistics();
+        assertThat(statistics).containsEntry("messages", "1").containsEntry("failures", "0").containsEntry("custom headers", "1");
+        assertThat(statistics.get("connect millis")).startsWith("count=1");
+        assertThat(statistics.get("auth millis")).startsWith("count=1");
+        assertThat(statistics.get("data millis")).startsWith("count=1");
+        List<ConfigVerificationResult> results = ((SendEmail) testRunner.getProcessor()).verify(testRunner.getProcessContext(), testRunner.getLogger(), Collections.emptyMap());
+        assertThat(results).extracting(ConfigVerificationResult::getVerificationStepName).contains("Send Statistics auth millis");
+    }
+
+    @Test public void checkSendStatisticsOfReusedConnection() {
+        testRunner.setProperty(SendEmail.REUSE_CONNECTION, "true");
+        run();
+        Map<String, String> statistics = ((SendEmail) testRunner.getProcessor()).getSendStatistics();
+        assertThat(statistics).containsEntry("messages", "1");
+        assertThat(statistics.get("connect millis")).startsWith("count=1");
+        assertThat(statistics.get("data millis")).startsWith("count=1");
+    }
+
     private MimeMessage getMail() {
         MimeMessage[] mails = greenMail.getReceivedMessages();
         assertThat(mails).hasSize(1);
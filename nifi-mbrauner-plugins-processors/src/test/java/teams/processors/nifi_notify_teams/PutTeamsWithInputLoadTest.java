@@ -0,0 +1,85 @@
+package teams.processors.nifi_notify_teams;
+
+import com.sun.net.httpserver.HttpServer;
+import de.mbrauner.nifiplugins.processors.LoadTestReport;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * posts many messages to a local webhook stub, only executed in the load-test profile, sized by -Dload.messages per round
+ */
+public class PutTeamsWithInputLoadTest {
+
+    private final int messages = Integer.getInteger("load.messages", 10_000);
+    private final AtomicInteger received = new AtomicInteger();
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private HttpServer server;
+    private TestRunner testRunner;
+
+    @Before
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/webhook", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            received.incrementAndGet();
+            byte[] body = "1".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        testRunner = TestRunners.newTestRunner(PutTeamsWithInput.class);
+        testRunner.setProperty(PutTeamsWithInput.TITLE, "${title}");
+        testRunner.setProperty(PutTeamsWithInput.WEBHOOK, "http://127.0.0.1:" + server.getAddress().getPort() + "/webhook");
+        // the stub never throttles, the rate limit must not dominate the measurement
+        testRunner.setProperty(PutTeamsWithInput.INITIAL_RATE, Integer.toString(messages));
+        testRunner.setProperty(PutTeamsWithInput.MAX_RATE, Integer.toString(messages));
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void loadWebhook() {
+        LoadTestReport report = new LoadTestReport("put.teams");
+        boolean first = true;
+        while (report.nextRound()) {
+            received.set(0);
+            for (int i = 0; i < messages; i++) {
+                testRunner.enqueue(("message " + i).getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "load"));
+            }
+            for (int i = 0; i < messages; i++) {
+                final boolean initialize = first;
+                first = false;
+                report.time(1, () -> testRunner.run(1, false, initialize));
+            }
+            testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SUCC, messages);
+            assertThat(received.get()).isEqualTo(messages);
+            testRunner.clearTransferState();
+            testRunner.clearProvenanceEvents();
+        }
+        testRunner.run(1, true, false);
+        report.finish();
+    }
+}
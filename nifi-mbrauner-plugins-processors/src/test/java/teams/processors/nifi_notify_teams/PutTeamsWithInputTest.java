@@ -0,0 +1,279 @@
+package teams.processors.nifi_notify_teams;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.nifi.components.ConfigVerificationResult;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PutTeamsWithInputTest {
+
+    @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger status = new AtomicInteger(200);
+    private HttpServer server;
+    private TestRunner testRunner;
+
+    @Before
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/webhook", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                requests.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            byte[] body = "1".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status.get(), body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        testRunner = TestRunners.newTestRunner(PutTeamsWithInput.class);
+        testRunner.setProperty(PutTeamsWithInput.TITLE, "${title}");
+        testRunner.setProperty(PutTeamsWithInput.WEBHOOK, "http://127.0.0.1:" + server.getAddress().getPort() + "/webhook");
+    }
+
+    @After
+    public void after() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSend() {
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SUCC, 2);
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(0)).contains("\"title\":\"alert\"").contains("\"text\":\"first\"");
+    }
+
+    @Test
+    public void testUnreachableIsTransferredOnce() {
+        server.stop(0);
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_FAIL, 1);
+    }
+
+    @Test
+    public void testAsyncDelivery() throws InterruptedException {
+        testRunner.setProperty(PutTeamsWithInput.ASYNC_DELIVERY, "true");
+        testRunner.setProperty(PutTeamsWithInput.MAX_IN_FLIGHT, "2");
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue(("message " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        testRunner.run(1, false, true);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (testRunner.getFlowFilesForRelationship(PutTeamsWithInput.REL_SUCC).size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            testRunner.run(1, false, false);
+        }
+        testRunner.run(1, true, false);
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SUCC, 5);
+        assertThat(requests).hasSize(5);
+    }
+
+    @Test
+    public void testAggregation() {
+        testRunner.setProperty(PutTeamsWithInput.AGGREGATION_WINDOW, "1 hour");
+        testRunner.setProperty(PutTeamsWithInput.AGGREGATION_MAX_MESSAGES, "4");
+        testRunner.enqueue("disk full".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.enqueue("disk full".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.enqueue("cpu high".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.enqueue("other".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "other"));
+        testRunner.run();
+        assertThat(requests).isEmpty();
+        testRunner.assertTransferCount(PutTeamsWithInput.REL_SUCC, 0);
+
+        testRunner.enqueue("disk full".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.run();
+        testRunner.assertTransferCount(PutTeamsWithInput.REL_SUCC, 4);
+        assertThat(requests).hasSize(1);
+        assertThat(requests.get(0)).contains("\"title\":\"alert\"").contains("disk full (3x)").contains("cpu high");
+        assertThat(testRunner.getQueueSize().getObjectCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testAggregationMaxSize() {
+        testRunner.setProperty(PutTeamsWithInput.AGGREGATION_WINDOW, "1 hour");
+        testRunner.setProperty(PutTeamsWithInput.AGGREGATION_MAX_MESSAGES, "2");
+        testRunner.setProperty(PutTeamsWithInput.AGGREGATION_MAX_SIZE, "12 B");
+        testRunner.enqueue("0123456789abcdef".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "alert"));
+        testRunner.run();
+        testRunner.assertTransferCount(PutTeamsWithInput.REL_SUCC, 2);
+        assertThat(requests).hasSize(1);
+        assertThat(requests.get(0)).contains("0123456789ab").doesNotContain("0123456789abc").doesNotContain("second")
+            .contains("[1 more messages omitted]");
+    }
+
+    @Test
+    public void testThrottledIsRequeued() {
+        status.set(429);
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8));
+        testRunner.run();
+        testRunner.assertTransferCount(PutTeamsWithInput.REL_SUCC, 0);
+        testRunner.assertTransferCount(PutTeamsWithInput.REL_FAIL, 0);
+        assertThat(testRunner.getQueueSize().getObjectCount()).isEqualTo(1);
+        assertThat(testRunner.getCounterValue("Throttled by webhook")).isEqualTo(1L);
+    }
+
+    @Test
+    public void testRejectedIsFailure() {
+        status.set(400);
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_FAIL, 1);
+    }
+
+    @Test
+    public void testRetryAfter() {
+        assertThat(WebhookResponse.parseRetryAfter("3")).isEqualTo(3000L);
+        assertThat(WebhookResponse.parseRetryAfter(null)).isZero();
+        assertThat(WebhookResponse.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT")).isZero();
+        assertThat(new WebhookResponse(503, null).getOutcome()).isEqualTo(WebhookResponse.Outcome.RETRY);
+    }
+
+    @Test
+    public void testStreamedJson() {
+        String text = "line \"quoted\"\n\ttab \\ backslash \u00e4\u20ac\ud83d\ude00 \u0001";
+        testRunner.enqueue(text.getBytes(StandardCharsets.UTF_8), Collections.singletonMap("title", "t\"itle"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SUCC, 1);
+        Message message = new Gson().fromJson(requests.get(0), Message.class);
+        assertThat(message.getTitle()).isEqualTo("t\"itle");
+        assertThat(message.getText()).isEqualTo(text);
+    }
+
+    @Test
+    public void testTruncation() {
+        testRunner.setProperty(PutTeamsWithInput.MAX_TEXT_LENGTH, "5");
+        testRunner.enqueue("0123456789".getBytes(StandardCharsets.UTF_8));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SUCC, 1);
+        Message message = new Gson().fromJson(requests.get(0), Message.class);
+        assertThat(message.getText()).isEqualTo("01234" + MessageJsonInputStream.TRUNCATION_MARKER);
+    }
+
+    @Test
+    public void testCardTemplate() {
+        testRunner.setProperty(PutTeamsWithInput.CARD_TEMPLATE, "{\"@type\":\"MessageCard\",\"summary\":\"${title}\","
+            + "\"sections\":[{\"facts\":[{\"name\":\"host\",\"value\":\"${host:toUpper()}\"}]}]}");
+        testRunner.assertValid();
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("title", "disk \"full\"");
+        attributes.put("host", "db1");
+        testRunner.enqueue("ignored".getBytes(StandardCharsets.UTF_8), attributes);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SUCC, 1);
+        JsonObject card = JsonParser.parseString(requests.get(0)).getAsJsonObject();
+        assertThat(card.get("summary").getAsString()).isEqualTo("disk \"full\"");
+        assertThat(card.getAsJsonArray("sections").get(0).getAsJsonObject().getAsJsonArray("facts").get(0).getAsJsonObject()
+            .get("value").getAsString()).isEqualTo("DB1");
+    }
+
+    @Test
+    public void testInvalidCardTemplate() {
+        testRunner.setProperty(PutTeamsWithInput.CARD_TEMPLATE, "{\"summary\":\"${title}\"");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testSpool() throws Exception {
+        testRunner.setProperty(PutTeamsWithInput.SPOOL_DIRECTORY, folder.getRoot().getAbsolutePath());
+        status.set(503);
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8));
+        testRunner.enqueue("second".getBytes(StandardCharsets.UTF_8));
+        testRunner.run(2, false, true);
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SPOOLED, 2);
+        testRunner.getFlowFilesForRelationship(PutTeamsWithInput.REL_SPOOLED).get(0).assertAttributeEquals(PutTeamsWithInput.SPOOLED, "true");
+        PutTeamsWithInput processor = (PutTeamsWithInput) testRunner.getProcessor();
+        assertThat(processor.getSpoolSize()).isEqualTo(2);
+        assertThat(testRunner.getCounterValue("Messages Spooled")).isEqualTo(2L);
+        List<ConfigVerificationResult> results = processor.verify(testRunner.getProcessContext(), testRunner.getLogger(), Collections.emptyMap());
+        assertThat(results).extracting(ConfigVerificationResult::getExplanation).containsExactly("2 messages spooled");
+
+        status.set(200);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (processor.getSpoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        testRunner.run(1, true, false);
+        assertThat(processor.getSpoolSize()).isZero();
+        Message message = new Gson().fromJson(requests.get(requests.size() - 1), Message.class);
+        assertThat(message.getText()).isEqualTo("second");
+        assertThat(folder.getRoot().list()).isEmpty();
+    }
+
+    @Test
+    public void testSpoolRejectedToDeadLetter() throws Exception {
+        testRunner.setProperty(PutTeamsWithInput.SPOOL_DIRECTORY, folder.getRoot().getAbsolutePath());
+        status.set(503);
+        testRunner.enqueue("first".getBytes(StandardCharsets.UTF_8));
+        testRunner.run(1, false, true);
+        testRunner.assertAllFlowFilesTransferred(PutTeamsWithInput.REL_SPOOLED, 1);
+        PutTeamsWithInput processor = (PutTeamsWithInput) testRunner.getProcessor();
+
+        status.set(400);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (processor.getSpoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        testRunner.run(1, true, false);
+        assertThat(processor.getSpoolSize()).isZero();
+        assertThat(folder.getRoot().list()).containsExactly(MessageSpool.DEAD_LETTER_FILE);
+        String deadLetter = new String(Files.readAllBytes(folder.getRoot().toPath().resolve(MessageSpool.DEAD_LETTER_FILE)), StandardCharsets.UTF_8);
+        Message message = new Gson().fromJson(new Gson().fromJson(deadLetter.trim(), String.class), Message.class);
+        assertThat(message.getText()).isEqualTo("first");
+    }
+
+    @Test
+    public void testSpoolMovesCorruptLineToDeadLetter() throws Exception {
+        Files.write(folder.getRoot().toPath().resolve(MessageSpool.SPOOL_FILE),
+            ("\"{\\\"text\\\":\n" + new Gson().toJson("{\"text\":\"spooled\"}") + "\n").getBytes(StandardCharsets.UTF_8));
+        testRunner.setProperty(PutTeamsWithInput.SPOOL_DIRECTORY, folder.getRoot().getAbsolutePath());
+        testRunner.run(1, false, true);
+        PutTeamsWithInput processor = (PutTeamsWithInput) testRunner.getProcessor();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (processor.getSpoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        testRunner.run(1, true, false);
+        assertThat(processor.getSpoolSize()).isZero();
+        assertThat(requests).hasSize(1);
+        assertThat(new Gson().fromJson(requests.get(0), Message.class).getText()).isEqualTo("spooled");
+        String deadLetter = new String(Files.readAllBytes(folder.getRoot().toPath().resolve(MessageSpool.DEAD_LETTER_FILE)), StandardCharsets.UTF_8);
+        assertThat(new Gson().fromJson(deadLetter.trim(), String.class)).isEqualTo("\"{\\\"text\\\":");
+    }
+
+    @Test
+    public void testSpoolNotWithAsync() {
+        testRunner.setProperty(PutTeamsWithInput.SPOOL_DIRECTORY, folder.getRoot().getAbsolutePath());
+        testRunner.setProperty(PutTeamsWithInput.ASYNC_DELIVERY, "true");
+        testRunner.assertNotValid();
+    }
+}